@@ -246,6 +246,10 @@ final class AlternativeTypeInfo {
      * This is significant for deserialization, because it determines the
      * way in which the field can be assigned to. The bytecode verifier
      * does not allow arbitraty assignments to final fields.
+     * When the JVM allows final fields to be assigned through
+     * <code>java.lang.reflect.Field</code> (see
+     * {@link JavaDependantStuff#finalFieldsSettable}), this is always false,
+     * so that final fields are assigned like all other fields.
      */
     boolean[] fields_final;
 
@@ -326,6 +330,16 @@ final class AlternativeTypeInfo {
     /** Helper class for this class, generated by IOGenerator. */
     Generator gen;
 
+    /**
+     * Field accessor for this class level, generated at runtime, or
+     * <code>null</code>.
+     */
+    RuntimeAccessor accessor = null;
+
+    /** Cleared when the runtime generator turns out to be unavailable. */
+    private static boolean runtimeGeneratorAvailable
+            = IOProperties.RUNTIME_GENERATOR;
+
     /**
      * A <code>Comparator</code> implementation for sorting the
      * fields array.
@@ -802,7 +816,8 @@ final class AlternativeTypeInfo {
                 fields_final = new boolean[size];
 
                 for (int i = 0; i < size; i++) {
-                    if (serializable_fields[i] != null) {
+                    if (serializable_fields[i] != null
+                            && ! JavaDependantStuff.finalFieldsSettable) {
                         fields_final[i]
                             = ((serializable_fields[i].getModifiers()
                                         & Modifier.FINAL) != 0);
@@ -818,6 +833,17 @@ final class AlternativeTypeInfo {
                     + "info for " + clazz.getName(), e);
         }
 
+        if (runtimeGeneratorAvailable && isSerializable && ! isIbisSerializable
+                && ! isExternalizable && ! isArray) {
+            try {
+                accessor = RuntimeGenerator.generate(this);
+            } catch (Throwable e) {
+                // Most likely, BCEL is not available.
+                logger.info("Runtime generator not available", e);
+                runtimeGeneratorAvailable = false;
+            }
+        }
+
         writer = createWriter();
         reader = createReader();
     }
@@ -0,0 +1,129 @@
+/* $Id$ */
+
+package ibis.io;
+
+/**
+ * A pool of byte buffers, shared by the buffered array streams.
+ * Buffers are kept in size classes of powers of two. Each thread has a
+ * small cache per size class, so that a buffer that is returned and
+ * borrowed again by the same thread does not need any synchronization.
+ * When a cache is full or empty, the shared pool of the size class is
+ * used, which is bounded by the <code>ibis.io.buffer.pool.size</code>
+ * property. Buffers that do not fit anywhere are left to the garbage
+ * collector.
+ */
+final class BufferPool {
+
+    /** Smallest pooled size class: 1 KB. */
+    private static final int MIN_SHIFT = 10;
+
+    /** Largest pooled size class: 16 MB. */
+    private static final int MAX_SHIFT = 24;
+
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** Number of buffers per size class in a thread cache. */
+    private static final int CACHE_SIZE = 4;
+
+    private static final int POOL_SIZE = IOProperties.BUFFER_POOL_SIZE;
+
+    /** The shared buffers, per size class. */
+    private static final byte[][][] pool = new byte[CLASSES][POOL_SIZE][];
+
+    private static final int[] poolCount = new int[CLASSES];
+
+    /** Per-thread cache. */
+    private static final class Cache {
+        final byte[][][] buffers = new byte[CLASSES][CACHE_SIZE][];
+
+        final int[] count = new int[CLASSES];
+    }
+
+    private static final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    private BufferPool() {
+        // prevent construction.
+    }
+
+    /**
+     * Returns the size class of a buffer of the specified size, or -1 if
+     * buffers of this size are not pooled.
+     */
+    private static int sizeClass(int size) {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < size) {
+            shift++;
+            if (shift > MAX_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Borrows a buffer of at least the specified size.
+     * @param size the minimum size of the buffer.
+     * @return the buffer.
+     */
+    static byte[] get(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            return new byte[size];
+        }
+
+        Cache cache = caches.get();
+        int n = cache.count[c];
+        if (n > 0) {
+            n--;
+            byte[] b = cache.buffers[c][n];
+            cache.buffers[c][n] = null;
+            cache.count[c] = n;
+            return b;
+        }
+
+        synchronized (pool[c]) {
+            n = poolCount[c];
+            if (n > 0) {
+                n--;
+                byte[] b = pool[c][n];
+                pool[c][n] = null;
+                poolCount[c] = n;
+                return b;
+            }
+        }
+
+        return new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer that was obtained with {@link #get(int)}. The caller
+     * may not use the buffer afterwards.
+     * @param b the buffer.
+     */
+    static void release(byte[] b) {
+        int c = sizeClass(b.length);
+        if (c < 0 || b.length != 1 << (c + MIN_SHIFT)) {
+            return;
+        }
+
+        Cache cache = caches.get();
+        int n = cache.count[c];
+        if (n < CACHE_SIZE) {
+            cache.buffers[c][n] = b;
+            cache.count[c] = n + 1;
+            return;
+        }
+
+        synchronized (pool[c]) {
+            n = poolCount[c];
+            if (n < POOL_SIZE) {
+                pool[c][n] = b;
+                poolCount[c] = n + 1;
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,10 +17,15 @@ import org.slf4j.LoggerFactory;
  * It is built on top of an <code>InputStream</code>.
  * There is no need to put any buffering inbetween. This implementation
  * does all the buffering needed.
+ * When the <code>ibis.io.buffer.pool</code> property is set, the buffer
+ * is borrowed from a {@link BufferPool} when data arrives, and returned
+ * while the stream waits for data with an empty buffer.
  */
 public final class BufferedArrayInputStream extends DataInputStream {
     
     private static final boolean DEBUG = IOProperties.DEBUG;
+
+    private static final boolean POOL = IOProperties.BUFFER_POOL;
     
     private static final Logger logger = LoggerFactory.getLogger(BufferedArrayInputStream.class);
 
@@ -29,6 +35,12 @@ public final class BufferedArrayInputStream extends DataInputStream {
     /** The underlying <code>InputStream</code>. */
     private InputStream in;
 
+    /**
+     * The channel underlying <code>in</code>, if any. Used to read large
+     * byte buffers without copying them through the buffer.
+     */
+    private ReadableByteChannel channel;
+
     /** The buffer. */
     private byte[] buffer;
     
@@ -48,7 +60,9 @@ public final class BufferedArrayInputStream extends DataInputStream {
     public BufferedArrayInputStream(InputStream in, int bufSize) {
         this.in = in;
         BUF_SIZE = bufSize;
-        buffer = new byte[BUF_SIZE];
+        if (! POOL) {
+            buffer = new byte[BUF_SIZE];
+        }
         conversion = Conversion.loadConversion(false);
     }
 
@@ -60,6 +74,16 @@ public final class BufferedArrayInputStream extends DataInputStream {
         this(in, IOProperties.BUFFER_SIZE);
     }
     
+    /**
+     * Sets the channel that underlies the input stream, so that
+     * {@link #readByteBuffer(ByteBuffer)} can read directly from it. The
+     * channel must be in blocking mode.
+     * @param channel the channel, or <code>null</code>.
+     */
+    public void setChannel(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
     public long bytesRead() {
         return bytes - buffered_bytes;
     }
@@ -92,6 +116,9 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
         if (buffered_bytes == 0) {
             index = 0;
+            if (POOL) {
+                waitForData();
+            }
         } else if (index + buffered_bytes > BUF_SIZE - len) {
             // not enough space for "len" more bytes
             System.arraycopy(buffer, index, buffer, 0, buffered_bytes);
@@ -108,6 +135,31 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
     }
 
+    /**
+     * Makes sure that there is a buffer, with at least one byte in it if the
+     * underlying stream has nothing available yet. The buffer is returned to
+     * the pool while blocking for that byte, so that idle streams do not hold
+     * on to a buffer.
+     * PRECONDITION: the buffer is empty.
+     */
+    private void waitForData() throws IOException {
+        if (buffer != null && in.available() > 0) {
+            return;
+        }
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new java.io.EOFException("EOF encountered");
+        }
+        buffer = BufferPool.get(BUF_SIZE);
+        buffer[0] = (byte) b;
+        bytes++;
+        buffered_bytes = 1;
+    }
+
     public final int available() throws IOException {
         return (buffered_bytes + in.available());
     }
@@ -164,6 +216,11 @@ public final class BufferedArrayInputStream extends DataInputStream {
                     + "])");
         }
 
+        if (len == 0) {
+            // The buffer may not even exist.
+            return;
+        }
+
         if (buffered_bytes >= len) {
             // data is already in the buffer.
             System.arraycopy(buffer, index, a, off, len);
@@ -547,6 +604,11 @@ public final class BufferedArrayInputStream extends DataInputStream {
                     + "])");
         }
 
+        if (len == 0) {
+            // The buffer may not even exist.
+            return 0;
+        }
+
         if (buffered_bytes >= len) {
             // data is already in the buffer.
 
@@ -579,6 +641,10 @@ public final class BufferedArrayInputStream extends DataInputStream {
 
     public void close() throws IOException {
         in.close();
+        if (buffer != null && POOL) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
     }
     
     public int bufferSize() {
@@ -590,6 +656,11 @@ public final class BufferedArrayInputStream extends DataInputStream {
 
 	int len = value.limit() - value.position();
 	
+        if (len == 0) {
+            // The buffer may not even exist.
+            return;
+        }
+
         if (buffered_bytes >= len) {
             // data is already in the buffer.
             value.put(buffer, index, len);
@@ -603,10 +674,28 @@ public final class BufferedArrayInputStream extends DataInputStream {
         	buffered_bytes = 0;
             }
             index = 0;
-            if (value.hasArray()) {
-        	in.read(value.array(), value.arrayOffset(), len);
-        	value.position(value.limit());
-        	bytes += len;
+            if (channel != null) {
+                // Read straight into the buffer of the caller.
+                while (value.hasRemaining()) {
+                    int n = channel.read(value);
+                    if (n < 0) {
+                        throw new java.io.EOFException("EOF encountered");
+                    }
+                    bytes += n;
+                }
+            } else if (value.hasArray()) {
+                byte[] a = value.array();
+                int off = value.arrayOffset() + value.position();
+                int rd = 0;
+                do {
+                    int n = in.read(a, off + rd, len - rd);
+                    if (n < 0) {
+                        throw new java.io.EOFException("EOF encountered");
+                    }
+                    rd += n;
+                } while (rd < len);
+                value.position(value.limit());
+                bytes += len;
             } else {
         	do {
         	    int toread = Math.min(len, BUF_SIZE);
@@ -14,6 +14,9 @@ import org.slf4j.LoggerFactory;
  * It is built on top of an <code>OutputStream</code>.
  * There is no need to put any buffering inbetween. This implementation
  * does all the buffering needed.
+ * When the <code>ibis.io.buffer.pool</code> property is set, the buffer
+ * is borrowed from a {@link BufferPool} when data is written, and returned
+ * when the stream is flushed.
  */
 public final class BufferedArrayOutputStream extends DataOutputStream {
     
@@ -21,6 +24,8 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
     private static final boolean DEBUG = IOProperties.DEBUG;
 
+    private static final boolean POOL = IOProperties.BUFFER_POOL;
+
     /** Size of the buffer in which output data is collected. */
     private final int BUF_SIZE;
 
@@ -47,7 +52,9 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     public BufferedArrayOutputStream(OutputStream out, int bufSize) {
         this.out = out;
         BUF_SIZE = bufSize;
-        buffer = new byte[BUF_SIZE];
+        if (! POOL) {
+            buffer = new byte[BUF_SIZE];
+        }
         conversion = Conversion.loadConversion(false);
     }
 
@@ -87,6 +94,20 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
             out.write(buffer, 0, index);
             index = 0;
         }
+
+        if (buffer == null) {
+            buffer = BufferPool.get(BUF_SIZE);
+        }
+    }
+
+    /**
+     * Returns the buffer to the pool if it is empty.
+     */
+    private void release() {
+        if (POOL && index == 0 && buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
     }
 
     public void write(int b) throws IOException {
@@ -187,10 +208,12 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
                 bytes += len;
                 out.write(ref, off, len);
             } else {
+                flush(0);
                 System.arraycopy(ref, off, buffer, 0, len);
                 index = len;
             }
         } else {
+            flush(0);
             System.arraycopy(ref, off, buffer, index, len);
             index += len;
         }
@@ -322,7 +345,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public void flush() throws IOException {
-        flush(BUF_SIZE + 1); /* Forces flush */
+        if (buffer != null) {
+            flush(BUF_SIZE + 1); /* Forces flush */
+            release();
+        }
         out.flush();
     }
 
@@ -337,6 +363,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     public void close() throws IOException {
         flush();
         out.close();
+        if (buffer != null && POOL) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
     }
     
     public int bufferSize() {
@@ -346,7 +376,9 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     public void writeByteBuffer(ByteBuffer value) throws IOException {
 
 	int len = value.limit() - value.position();
-	
+
+        flush(0);
+
         if (len > (BUF_SIZE - index)) {
 
             if (index > 0) {
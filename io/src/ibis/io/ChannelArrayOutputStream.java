@@ -0,0 +1,444 @@
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a complete implementation of <code>DataOutputStream</code>,
+ * built on top of a <code>GatheringByteChannel</code>.
+ * Primitives and arrays of primitives are converted straight into
+ * direct <code>ByteBuffer</code>s, which are sent with a single gathering
+ * write when the stream is flushed or when enough buffers are pending.
+ * The data format is the same as the one produced by
+ * {@link BufferedArrayOutputStream}, so the data can be read with a
+ * {@link BufferedArrayInputStream}.
+ */
+public final class ChannelArrayOutputStream extends DataOutputStream {
+
+    private static final Logger logger
+            = LoggerFactory.getLogger(ChannelArrayOutputStream.class);
+
+    private static final boolean DEBUG = IOProperties.DEBUG;
+
+    /** Same byte order as the conversion used by the buffered streams. */
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /** Maximum number of buffers collected for a single gathering write. */
+    private static final int MAX_PENDING = 16;
+
+    /** Maximum number of direct buffers kept in the pool. */
+    private static final int POOL_SIZE = 256;
+
+    /** Pool of direct buffers, shared by all streams. */
+    private static final ByteBuffer[] pool = new ByteBuffer[POOL_SIZE];
+
+    private static int poolSize = 0;
+
+    /** Size of the direct buffers. */
+    private final int BUF_SIZE;
+
+    /** The underlying channel. */
+    private GatheringByteChannel channel;
+
+    /** The buffer currently being filled. */
+    private ByteBuffer buffer;
+
+    /** Buffers waiting to be written, in order. */
+    private final ByteBuffer[] pending = new ByteBuffer[MAX_PENDING];
+
+    /** Which of the pending buffers came from the pool. */
+    private final boolean[] pooled = new boolean[MAX_PENDING];
+
+    private int nPending = 0;
+
+    /** Number of bytes written so far to the underlying layer. */
+    private long bytes = 0;
+
+    /**
+     * Returns a pooled buffer of exactly the given size, or a new one if the
+     * pool has none. Streams may use different buffer sizes.
+     */
+    private static synchronized ByteBuffer getBuffer(int size) {
+        for (int i = poolSize - 1; i >= 0; i--) {
+            ByteBuffer b = pool[i];
+            if (b.capacity() == size) {
+                pool[i] = pool[--poolSize];
+                pool[poolSize] = null;
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocateDirect(size).order(ORDER);
+    }
+
+    private static synchronized void recycle(ByteBuffer b) {
+        if (poolSize < POOL_SIZE) {
+            pool[poolSize++] = b;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel, may be <code>null</code>
+     *                  and set later.
+     * @param bufSize   the size of the direct buffers in bytes.
+     */
+    public ChannelArrayOutputStream(GatheringByteChannel channel, int bufSize) {
+        this.channel = channel;
+        // Keep the buffers aligned for all primitive types.
+        BUF_SIZE = (bufSize + 7) & ~7;
+        buffer = getBuffer(BUF_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel.
+     */
+    public ChannelArrayOutputStream(GatheringByteChannel channel) {
+        this(channel, IOProperties.BUFFER_SIZE);
+    }
+
+    /**
+     * Sets the underlying channel. Any data that is still buffered is
+     * written to the new channel.
+     * @param channel   the new channel.
+     */
+    public void setChannel(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public long bytesWritten() {
+        return bytes + buffer.position();
+    }
+
+    public void resetBytesWritten() {
+        bytes = -buffer.position();
+    }
+
+    /**
+     * Moves the current buffer to the pending list, and sends the pending
+     * list when it is full.
+     */
+    private void rotate() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        if (nPending == MAX_PENDING) {
+            send();
+        }
+        buffer.flip();
+        pending[nPending] = buffer;
+        pooled[nPending] = true;
+        nPending++;
+        buffer = getBuffer(BUF_SIZE);
+    }
+
+    /**
+     * Adds a buffer that is not ours to the pending list.
+     */
+    private void addForeign(ByteBuffer b) throws IOException {
+        rotate();
+        if (nPending == MAX_PENDING) {
+            send();
+        }
+        pending[nPending] = b;
+        pooled[nPending] = false;
+        nPending++;
+    }
+
+    /**
+     * Writes all pending buffers with gathering writes. If writing fails,
+     * all buffered data is dropped, so that it cannot end up on a channel
+     * set later on, after data that was lost.
+     */
+    private void send() throws IOException {
+        if (nPending == 0) {
+            return;
+        }
+
+        if (channel == null) {
+            throw new IOException("ChannelArrayOutputStream: no channel");
+        }
+
+        long todo = 0;
+        for (int i = 0; i < nPending; i++) {
+            todo += pending[i].remaining();
+        }
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("send(): " + nPending + " buffers, " + todo
+                    + " bytes");
+        }
+
+        int first = 0;
+        try {
+            while (todo > 0) {
+                long n = channel.write(pending, first, nPending - first);
+                todo -= n;
+                bytes += n;
+                while (first < nPending && ! pending[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } finally {
+            for (int i = 0; i < nPending; i++) {
+                if (pooled[i]) {
+                    recycle(pending[i]);
+                }
+                pending[i] = null;
+            }
+            nPending = 0;
+            if (todo > 0) {
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Makes sure that there is room for <code>incr</code> more bytes in the
+     * current buffer.
+     */
+    private void ensure(int incr) throws IOException {
+        if (buffer.remaining() < incr) {
+            rotate();
+        }
+    }
+
+    public void write(int b) throws IOException {
+        writeByte((byte) b);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        ensure(1);
+        buffer.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeByte(byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+    }
+
+    public void writeChar(char value) throws IOException {
+        ensure(Constants.SIZEOF_CHAR);
+        buffer.putChar(value);
+    }
+
+    public void writeShort(short value) throws IOException {
+        ensure(Constants.SIZEOF_SHORT);
+        buffer.putShort(value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(Constants.SIZEOF_INT);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(Constants.SIZEOF_LONG);
+        buffer.putLong(value);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        ensure(Constants.SIZEOF_FLOAT);
+        buffer.putFloat(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(Constants.SIZEOF_DOUBLE);
+        buffer.putDouble(value);
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        // The OutputStream contract allows the caller to touch the array
+        // again immediately, so copy.
+        while (len > 0) {
+            ensure(1);
+            int size = Math.min(buffer.remaining(), len);
+            buffer.put(b, off, size);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(boolean[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(boolean[" + off + " ... "
+                    + (off + len) + "])");
+        }
+        while (len > 0) {
+            ensure(1);
+            int size = Math.min(buffer.remaining(), len);
+            for (int i = 0; i < size; i++) {
+                buffer.put(ref[off + i] ? (byte) 1 : (byte) 0);
+            }
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(byte[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(byte[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        if (len >= BUF_SIZE) {
+            // Large array: include it in the gathering write as is. The
+            // array may not be touched until the stream is flushed.
+            addForeign(ByteBuffer.wrap(ref, off, len));
+            return;
+        }
+        write(ref, off, len);
+    }
+
+    public void writeArray(char[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(char[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_CHAR);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_CHAR,
+                    len);
+            buffer.asCharBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_CHAR);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(short[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(short[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_SHORT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_SHORT,
+                    len);
+            buffer.asShortBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_SHORT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(int[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(int[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_INT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_INT, len);
+            buffer.asIntBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_INT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(long[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(long[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_LONG);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_LONG,
+                    len);
+            buffer.asLongBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_LONG);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(float[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(float[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_FLOAT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_FLOAT,
+                    len);
+            buffer.asFloatBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_FLOAT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(double[] ref, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(double[" + off + " ... " + (off + len)
+                    + "])");
+        }
+        while (len > 0) {
+            ensure(Constants.SIZEOF_DOUBLE);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_DOUBLE,
+                    len);
+            buffer.asDoubleBuffer().put(ref, off, size);
+            buffer.position(buffer.position()
+                    + size * Constants.SIZEOF_DOUBLE);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeByteBuffer(ByteBuffer value) throws IOException {
+        int len = value.limit() - value.position();
+        if (len >= BUF_SIZE) {
+            // Written as is; the position of the caller's buffer is
+            // advanced, as with the other streams.
+            ByteBuffer b = value.slice();
+            value.position(value.limit());
+            addForeign(b);
+            return;
+        }
+        while (len > 0) {
+            ensure(1);
+            int size = Math.min(buffer.remaining(), len);
+            int limit = value.limit();
+            value.limit(value.position() + size);
+            buffer.put(value);
+            value.limit(limit);
+            len -= size;
+        }
+    }
+
+    public void flush() throws IOException {
+        rotate();
+        send();
+    }
+
+    public void finish() {
+        // empty
+    }
+
+    public boolean finished() {
+        return true;
+    }
+
+    public void close() throws IOException {
+        flush();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public int bufferSize() {
+        return BUF_SIZE;
+    }
+}
@@ -7,6 +7,13 @@ import ibis.util.Timer;
 /**
  * A hash table that aims for speed for pairs (Object, int). This one is
  * specially made for (object, handle) pairs.
+ * By default, the table uses chained buckets. When the
+ * <code>ibis.io.hash.open</code> property is set, it uses open addressing
+ * with linear probing instead, and every slot carries the generation in
+ * which it was filled. A {@link #clear()} then just starts a new
+ * generation, which makes it O(1) instead of O(size). The open table keeps
+ * the size it has grown to over clears, and only shrinks after it has been
+ * mostly empty for {@link #SHRINK_CLEARS} clears in a row.
  */
 public final class HandleHash {
 
@@ -16,8 +23,17 @@ public final class HandleHash {
     private static final boolean TIMINGS = IOProperties.properties.getBooleanProperty(
             IOProperties.s_hash_timings);
 
+    private static final boolean OPEN = IOProperties.properties.getBooleanProperty(
+            IOProperties.s_hash_open);
+
     private static final int MIN_BUCKETS = 32;
 
+    /**
+     * Number of clears in a row at which the open table is less than an
+     * eighth full before it shrinks.
+     */
+    private static final int SHRINK_CLEARS = 16;
+
     private static final boolean CACHE_HASH = false;
 
     /*
@@ -41,6 +57,25 @@ public final class HandleHash {
     /** Maps hash value to handle. */
     private int[] map;
 
+    // if (OPEN)
+    /** Open addressing: the objects. */
+    private Object[] keys;
+
+    /** Open addressing: the handles. */
+    private int[] handles;
+
+    /** Open addressing: the generation in which each slot was filled. */
+    private int[] generations;
+
+    /** Open addressing: the current generation. */
+    private int generation;
+
+    /** Open addressing: number of clears in a row at low occupancy. */
+    private int lowClears;
+
+    /** Open addressing: most entries in use during those clears. */
+    private int lowPeak;
+
     // if (STATS)
     private long finds;
 
@@ -54,6 +89,10 @@ public final class HandleHash {
 
     private int mapsize;
 
+    private long probes;
+
+    private long clears;
+
     // if (TIMINGS)
     private Timer t_insert;
 
@@ -114,6 +153,10 @@ public final class HandleHash {
     }
 
     private void init(int sz) {
+        if (OPEN) {
+            initOpen(sz);
+            return;
+        }
         sizeThreshold = (sz * RESIZE_PERCENTAGE) / 100;
 
         map = new int[sz];
@@ -149,6 +192,10 @@ public final class HandleHash {
     }
 
     public final int find(Object ref, int hashcode) {
+        if (OPEN) {
+            return findOpen(ref, hashcode);
+        }
+
         if (TIMINGS) {
             t_find.start();
         }
@@ -258,6 +305,10 @@ public final class HandleHash {
      */
     public int put(Object ref, int handle, int hashcode) {
 
+        if (OPEN) {
+            return putOpen(ref, handle, hashcode);
+        }
+
         if (present >= sizeThreshold) {
             growMap();
         }
@@ -324,6 +375,11 @@ public final class HandleHash {
 
     public final void clear() {
 
+        if (OPEN) {
+            clearOpen();
+            return;
+        }
+
         // Check if the table has grown. If not, we
         // can reuse the existing arrays.
 
@@ -347,12 +403,178 @@ public final class HandleHash {
         }
     }
 
+    private void initOpen(int sz) {
+        // Keep the fill factor of the open table at most 50%.
+        sizeThreshold = sz >> 1;
+        keys = new Object[sz];
+        handles = new int[sz];
+        generations = new int[sz];
+        generation = 1;
+        present = 0;
+    }
+
+    private int findOpen(Object ref, int hashcode) {
+        if (TIMINGS) {
+            t_find.start();
+        }
+
+        if (STATS) {
+            finds++;
+        }
+
+        int mask = keys.length - 1;
+        for (int h = hashcode & mask; generations[h] == generation;
+                h = (h + 1) & mask) {
+            if (keys[h] == ref) {
+                if (TIMINGS) {
+                    t_find.stop();
+                }
+                return handles[h];
+            }
+            if (STATS) {
+                probes++;
+            }
+        }
+
+        if (TIMINGS) {
+            t_find.stop();
+        }
+        return 0;
+    }
+
+    /**
+     * Doubles the open table, keeping only the entries of the current
+     * generation.
+     */
+    private void growOpen() {
+        if (TIMINGS) {
+            t_rebuild.start();
+        }
+
+        Object[] oldKeys = keys;
+        int[] oldHandles = handles;
+        int[] oldGenerations = generations;
+        int oldGeneration = generation;
+        int n = present;
+
+        initOpen(oldKeys.length << 1);
+        if (keys.length > mapsize) {
+            mapsize = keys.length;
+        }
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldGenerations[i] == oldGeneration) {
+                insertOpen(oldKeys[i], oldHandles[i],
+                        getHashCode(oldKeys[i]));
+            }
+        }
+        present = n;
+
+        if (TIMINGS) {
+            t_rebuild.stop();
+        }
+
+        if (STATS) {
+            rebuilds++;
+        }
+    }
+
+    private void insertOpen(Object ref, int handle, int hashcode) {
+        int mask = keys.length - 1;
+        int h = hashcode & mask;
+        while (generations[h] == generation) {
+            if (STATS) {
+                collisions++;
+            }
+            h = (h + 1) & mask;
+        }
+        keys[h] = ref;
+        handles[h] = handle;
+        generations[h] = generation;
+    }
+
+    private int putOpen(Object ref, int handle, int hashcode) {
+        if (present >= sizeThreshold) {
+            growOpen();
+        }
+
+        if (TIMINGS) {
+            t_insert.start();
+        }
+
+        insertOpen(ref, handle, hashcode);
+        present++;
+        if (handle >= size) {
+            size = handle + 1;
+        }
+        if (size > maxsize) {
+            maxsize = size;
+        }
+
+        if (TIMINGS) {
+            t_insert.stop();
+        }
+        return handle;
+    }
+
+    private void clearOpen() {
+        if (present == 0) {
+            return;
+        }
+        if (STATS) {
+            clears++;
+        }
+        size = 1;
+
+        if (keys.length > initSize && present < keys.length >> 3) {
+            if (present > lowPeak) {
+                lowPeak = present;
+            }
+            lowClears++;
+            if (lowClears >= SHRINK_CLEARS) {
+                // The table has been mostly empty for a while. Shrink it so
+                // the peak fills at most a quarter, which also drops the
+                // references to the objects of previous generations.
+                int sz = initSize;
+                while (sz < lowPeak << 2) {
+                    sz <<= 1;
+                }
+                initOpen(sz);
+                lowClears = 0;
+                lowPeak = 0;
+                return;
+            }
+        } else {
+            lowClears = 0;
+            lowPeak = 0;
+        }
+
+        generation++;
+        if (generation == 0) {
+            // Wrapped around: old stamps could become valid again.
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = 0;
+                keys[i] = null;
+            }
+            generation = 1;
+        }
+        present = 0;
+    }
+
     public final void finalize() {
         statistics();
     }
 
     final void statistics() {
         if (STATS) {
+            if (OPEN) {
+                System.err.println(this + ": open addressing"
+                        + " mapsize " + mapsize + " maxsize " + maxsize
+                        + " finds " + finds + " probes " + probes
+                        + " rebuilds " + rebuilds + " collisions "
+                        + collisions + " clears " + clears);
+                return;
+            }
             System.err.println(this + ": " +
             // "buckets = " + size +
                     " mapsize " + mapsize + " maxsize " + maxsize + " finds "
@@ -39,6 +39,9 @@ public final class IOProperties {
     
     static final String s_timer_ibis = PREFIX + "serialization.timer.ibis";
 
+    static final String s_runtime_generator = PREFIX
+            + "serialization.generate";
+
     static final String s_no_array_buffers = PREFIX + "noarraybuffers";
 
     static final String s_conversion = PREFIX + "conversion";
@@ -65,8 +68,20 @@ public final class IOProperties {
 
     static final String s_hash_resize = PREFIX + "hash.resize";
 
+    static final String s_hash_open = PREFIX + "hash.open";
+
     static final String s_deepcopy_ser = PREFIX + "deepcopy.serialization";
 
+    static final String s_splitter_concurrent = PREFIX + "splitter.concurrent";
+
+    static final String s_splitter_timeout = PREFIX + "splitter.timeout";
+
+    static final String s_splitter_window = PREFIX + "splitter.window";
+
+    static final String s_buffer_pool = PREFIX + "buffer.pool";
+
+    static final String s_buffer_pool_size = PREFIX + "buffer.pool.size";
+
     private static final String[][] propertiesList = new String[][] {
             {
                     PROPERTIES_FILE,
@@ -86,6 +101,11 @@ public final class IOProperties {
                     "Boolean: if true, enables data serialization timers" },                  
             { s_timer_ibis, "false",
                     "Boolean: if true, enables ibis serialization timers" },       
+            {
+                    s_runtime_generator,
+                    "false",
+                    "Boolean: if true, field accessors are generated at runtime "
+                            + "for classes that are not rewritten" },
             {
                     s_no_array_buffers,
                     "false",
@@ -128,8 +148,41 @@ public final class IOProperties {
                     "Integer: determines the fill-percentage before the ibis hash "
                             + " is resized; choose between 50 and 200; larger values "
                             + " mean more chaining but a smaller hash size" },
+            {
+                    s_hash_open,
+                    "false",
+                    "Boolean: if true, the handle hash uses open addressing "
+                            + "with a generation counter, so that clearing it "
+                            + "after each message is cheap" },
             { s_deepcopy_ser, "ibis",
-                    "String: determines the serialization used for DeepCopy" } };
+                    "String: determines the serialization used for DeepCopy" },
+            {
+                    s_splitter_concurrent,
+                    "false",
+                    "Boolean: if true, output stream splitters write to each "
+                            + "stream from a separate writer lane" },
+            {
+                    s_splitter_timeout,
+                    "30000",
+                    "Integer: time in milliseconds after which a writer lane "
+                            + "that makes no progress is reported as a slow "
+                            + "receiver; 0 disables detection" },
+            {
+                    s_splitter_window,
+                    "32",
+                    "Integer: maximum number of buffers queued at a single "
+                            + "writer lane of an output stream splitter" },
+            {
+                    s_buffer_pool,
+                    "false",
+                    "Boolean: if true, the buffered array streams borrow "
+                            + "their buffers from a shared pool, and return "
+                            + "them when idle" },
+            {
+                    s_buffer_pool_size,
+                    "64",
+                    "Integer: maximum number of buffers of each size kept "
+                            + "in the shared buffer pool" } };
 
     static {
         properties = new TypedProperties(getDefaultProperties());
@@ -156,6 +209,24 @@ public final class IOProperties {
 
     public static final int CONVERSION_BUFFER_SIZE = properties.getIntProperty(
             s_conversion_buf_size, 32 * 1024);
+
+    public static final boolean RUNTIME_GENERATOR
+            = properties.getBooleanProperty(s_runtime_generator, false);
+
+    public static final boolean SPLITTER_CONCURRENT
+            = properties.getBooleanProperty(s_splitter_concurrent, false);
+
+    public static final int SPLITTER_TIMEOUT = properties.getIntProperty(
+            s_splitter_timeout, 30000);
+
+    public static final int SPLITTER_WINDOW = properties.getIntProperty(
+            s_splitter_window, 32);
+
+    public static final boolean BUFFER_POOL = properties.getBooleanProperty(
+            s_buffer_pool, false);
+
+    public static final int BUFFER_POOL_SIZE = properties.getIntProperty(
+            s_buffer_pool_size, 64);
     
     /**
      * Returns the hard-coded Ibis IO properties.
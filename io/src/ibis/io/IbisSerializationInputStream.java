@@ -1039,6 +1039,10 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
             logger.debug("alternativeDefaultReadObject, class = "
                     + t.clazz.getName());
         }
+        if (t.accessor != null) {
+            t.accessor.readFields(this, ref);
+            return;
+        }
         for (int i = 0; i < t.double_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
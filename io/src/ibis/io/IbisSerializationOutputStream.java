@@ -798,6 +798,10 @@ public class IbisSerializationOutputStream
             logger.debug("alternativeDefaultWriteObject, class = "
                     + t.clazz.getName());
         }
+        if (t.accessor != null) {
+            t.accessor.writeFields(this, ref);
+            return;
+        }
         for (i = 0; i < t.double_count; i++) {
             writeDouble(t.serializable_fields[temp++].getDouble(ref));
         }
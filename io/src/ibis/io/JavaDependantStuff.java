@@ -2,6 +2,7 @@ package ibis.io;
 
 import java.io.IOException;
 import java.io.ObjectStreamClass;
+import java.lang.reflect.Field;
 import java.util.HashMap;
 
 import org.slf4j.Logger;
@@ -33,6 +34,41 @@ abstract class JavaDependantStuff {
 
     static final boolean DEBUG = IOProperties.DEBUG;
 
+    /** Class with a final field, used to probe the JVM. */
+    private static final class FinalFieldProbe {
+        final int value;
+
+        FinalFieldProbe() {
+            value = 1;
+        }
+    }
+
+    /**
+     * Set when final instance fields can be assigned through an accessible
+     * <code>java.lang.reflect.Field</code>, as allowed by JSR-133. In that
+     * case, final fields are assigned the same way as other fields,
+     * without a detour through JVM-specific code.
+     */
+    static final boolean finalFieldsSettable;
+
+    static {
+        boolean settable = false;
+        try {
+            Field f = FinalFieldProbe.class.getDeclaredField("value");
+            f.setAccessible(true);
+            FinalFieldProbe probe = new FinalFieldProbe();
+            f.setInt(probe, 2);
+            settable = f.getInt(probe) == 2;
+        } catch (Throwable e) {
+            // not settable
+        }
+        finalFieldsSettable = settable;
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("final fields settable through reflection: "
+                    + settable);
+        }
+    }
+
     static {
         String clName = System.getProperty(IOProperties.s_classloader);
         if (clName != null) {
@@ -7,6 +7,10 @@ import ibis.util.ThreadPool;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Contract: write to multiple outputstreams.
@@ -14,13 +18,31 @@ import java.util.ArrayList;
  * when the data is written to all streams, throw one large exception
  * that contains all previous exceptions.
  * This way, even when one of the streams dies, the rest will receive the data.
+ *
+ * In concurrent mode, every stream gets its own writer lane (a thread from
+ * the {@link ThreadPool}). A write copies the data once into a shared,
+ * read-only chunk and hands it to all lanes; the caller only waits for the
+ * lanes in {@link #flush()} and {@link #close()}. A lane that makes no
+ * progress for {@link IOProperties#SPLITTER_TIMEOUT} milliseconds is reported
+ * as a slow receiver and, when <code>removeOnException</code> is set, is
+ * dropped so that it does not stall the other streams.
  **/
 public final class OutputStreamSplitter extends OutputStream {
 
+    private static final Logger logger
+            = LoggerFactory.getLogger(OutputStreamSplitter.class);
+
     private static final int MAXTHREADS = 32;
 
+    private static final int WRITE = 0;
+
+    private static final int FLUSH = 1;
+
+    private static final int CLOSE = 2;
+
     private boolean removeOnException = false;
     private boolean saveException = false;
+    private boolean concurrent = false;
     private SplitterException savedException = null;
     private long bytesWritten = 0;
 
@@ -28,6 +50,102 @@ public final class OutputStreamSplitter extends OutputStream {
 
     private int numSenders = 0;
 
+    /** Writer lanes, one per stream, only used in concurrent mode. */
+    private final ArrayList<Lane> lanes = new ArrayList<Lane>();
+
+    /** Recycled chunks, only used in concurrent mode. */
+    private final LinkedList<Chunk> freeChunks = new LinkedList<Chunk>();
+
+    /**
+     * A piece of work that is handed to all lanes. The data is not changed
+     * until the last lane has released it.
+     */
+    private static final class Chunk {
+        int kind;
+        byte[] buf;
+        int len;
+        int refs;
+    }
+
+    private final class Lane implements Runnable {
+        final OutputStream stream;
+
+        final LinkedList<Chunk> queue = new LinkedList<Chunk>();
+
+        /** Set while the lane is writing, flushing or closing its stream. */
+        boolean busy = false;
+
+        /** Time at which the current operation of this lane started. */
+        long busySince;
+
+        /** Set when the lane failed, was found to be slow, or was removed. */
+        boolean dead = false;
+
+        /** Set when the stream was removed from the splitter. */
+        boolean removed = false;
+
+        /** Set when the lane has been reported as slow. */
+        boolean reported = false;
+
+        Lane(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        public void run() {
+            while (true) {
+                Chunk c;
+                synchronized (OutputStreamSplitter.this) {
+                    while (queue.isEmpty() && ! dead) {
+                        try {
+                            OutputStreamSplitter.this.wait();
+                        } catch (Exception e) {
+                            // Ignored
+                        }
+                    }
+                    if (dead) {
+                        return;
+                    }
+                    c = queue.getFirst();
+                    busy = true;
+                    busySince = System.currentTimeMillis();
+                }
+                IOException ex = null;
+                try {
+                    switch (c.kind) {
+                    case WRITE:
+                        stream.write(c.buf, 0, c.len);
+                        break;
+                    case FLUSH:
+                        stream.flush();
+                        break;
+                    case CLOSE:
+                        stream.close();
+                        break;
+                    default:
+                        throw new Error("Unknown splitter operation " + c.kind);
+                    }
+                } catch (IOException e) {
+                    ex = e;
+                }
+                synchronized (OutputStreamSplitter.this) {
+                    busy = false;
+                    if (! dead) {
+                        // Otherwise, the queue was already released.
+                        queue.removeFirst();
+                        release(c);
+                    } else {
+                        // Only the chunk in progress is still ours.
+                        release(c);
+                    }
+                    if (ex != null && ! removed) {
+                        laneFailed(this, ex);
+                    }
+                    OutputStreamSplitter.this.notifyAll();
+                }
+            }
+        }
+    }
+
     private class Sender implements Runnable {
         int offset;
         int len;
@@ -119,13 +237,41 @@ public final class OutputStreamSplitter extends OutputStream {
         // empty constructor
     }
 
+    /**
+     * Creates a splitter. Whether the splitter runs in concurrent mode is
+     * determined by the <code>ibis.io.splitter.concurrent</code> property.
+     * @param removeOnException whether streams are removed when they fail.
+     * @param saveException whether exceptions are saved until
+     *     {@link #getExceptions()} instead of being thrown.
+     */
     public OutputStreamSplitter(boolean removeOnException, boolean saveException) {
+        this(removeOnException, saveException,
+                IOProperties.SPLITTER_CONCURRENT);
+    }
+
+    /**
+     * Creates a splitter.
+     * @param removeOnException whether streams are removed when they fail.
+     * @param saveException whether exceptions are saved until
+     *     {@link #getExceptions()} instead of being thrown.
+     * @param concurrent whether each stream is written by its own lane.
+     */
+    public OutputStreamSplitter(boolean removeOnException,
+            boolean saveException, boolean concurrent) {
         this();
         this.removeOnException = removeOnException;
         this.saveException = saveException;
+        this.concurrent = concurrent;
     }
 
     public void add(OutputStream s) {
+        if (concurrent) {
+            Lane l = new Lane(s);
+            synchronized (this) {
+                lanes.add(l);
+            }
+            ThreadPool.createNew(l, "Splitter lane");
+        }
         out.add(s);
     }
 
@@ -137,9 +283,28 @@ public final class OutputStreamSplitter extends OutputStream {
         }
 
         out.remove(i);
+
+        if (concurrent) {
+            synchronized (this) {
+                for (int j = 0; j < lanes.size(); j++) {
+                    Lane l = lanes.get(j);
+                    if (l.stream == s) {
+                        l.removed = true;
+                        kill(l);
+                        lanes.remove(j);
+                        break;
+                    }
+                }
+            }
+        }
     }
 
     public void write(int b) throws IOException {
+        if (concurrent) {
+            byte[] buf = new byte[] { (byte) b };
+            write(buf, 0, 1);
+            return;
+        }
 
         synchronized(this) {
             while (numSenders != 0) {
@@ -189,6 +354,13 @@ public final class OutputStreamSplitter extends OutputStream {
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
+        if (concurrent) {
+            if (out.size() > 0) {
+                bytesWritten += len * out.size();
+                laneWrite(b, off, len);
+            }
+            return;
+        }
         if (out.size() > 0) {
             bytesWritten += len * out.size();
             synchronized(this) {
@@ -211,6 +383,10 @@ public final class OutputStreamSplitter extends OutputStream {
     }
 
     public void flush() throws IOException {
+        if (concurrent) {
+            laneSync(FLUSH);
+            return;
+        }
         if (out.size() > 0) {
             synchronized(this) {
                 while (numSenders != 0) {
@@ -232,6 +408,16 @@ public final class OutputStreamSplitter extends OutputStream {
     }
 
     public void close() throws IOException {
+        if (concurrent) {
+            laneSync(CLOSE);
+            synchronized (this) {
+                for (Lane l : lanes) {
+                    kill(l);
+                }
+                notifyAll();
+            }
+            return;
+        }
 
         if (out.size() > 0) {
             synchronized(this) {
@@ -262,7 +448,7 @@ public final class OutputStreamSplitter extends OutputStream {
         bytesWritten = 0;
     }
 
-    public SplitterException getExceptions() {
+    public synchronized SplitterException getExceptions() {
         SplitterException e = savedException;
         savedException = null;
         return e;
@@ -312,4 +498,173 @@ public final class OutputStreamSplitter extends OutputStream {
             }
         }
     }
+
+    /**
+     * Copies the data into a chunk and queues it at all live lanes. Only
+     * blocks when some lane has {@link IOProperties#SPLITTER_WINDOW} chunks
+     * queued.
+     */
+    private synchronized void laneWrite(byte[] b, int off, int len) {
+        Chunk c = null;
+        while (! freeChunks.isEmpty()) {
+            Chunk f = freeChunks.removeFirst();
+            if (f.buf.length >= len) {
+                c = f;
+                break;
+            }
+        }
+        if (c == null) {
+            c = new Chunk();
+            c.buf = new byte[Math.max(len, IOProperties.BUFFER_SIZE)];
+        }
+        System.arraycopy(b, off, c.buf, 0, len);
+        c.kind = WRITE;
+        c.len = len;
+        enqueue(c);
+
+        // Limit the amount of data buffered for slow lanes.
+        while (true) {
+            boolean full = false;
+            for (Lane l : lanes) {
+                if (! l.dead && l.queue.size() >= IOProperties.SPLITTER_WINDOW) {
+                    full = true;
+                    break;
+                }
+            }
+            if (! full) {
+                return;
+            }
+            laneWait();
+        }
+    }
+
+    /**
+     * Queues a flush or close at all live lanes and waits until all lanes
+     * are done, or have been found to be dead or slow.
+     */
+    private void laneSync(int kind) throws IOException {
+        synchronized (this) {
+            Chunk c = new Chunk();
+            c.kind = kind;
+            enqueue(c);
+
+            while (true) {
+                boolean done = true;
+                for (Lane l : lanes) {
+                    if (! l.dead && (l.busy || ! l.queue.isEmpty())) {
+                        done = false;
+                        break;
+                    }
+                }
+                if (done) {
+                    break;
+                }
+                laneWait();
+            }
+
+            if (removeOnException) {
+                for (int i = 0; i < lanes.size(); i++) {
+                    Lane l = lanes.get(i);
+                    if (l.dead) {
+                        out.remove(l.stream);
+                        lanes.remove(i);
+                        i--;
+                    }
+                }
+            }
+
+            if (savedException != null && ! saveException) {
+                SplitterException e = savedException;
+                savedException = null;
+                throw e;
+            }
+        }
+    }
+
+    private void enqueue(Chunk c) {
+        c.refs = 0;
+        for (Lane l : lanes) {
+            if (! l.dead) {
+                c.refs++;
+                l.queue.addLast(c);
+            }
+        }
+        if (c.refs == 0) {
+            release(c);
+        }
+        notifyAll();
+    }
+
+    private void release(Chunk c) {
+        if (c.refs > 0) {
+            c.refs--;
+        }
+        if (c.refs == 0 && c.kind == WRITE
+                && c.buf.length == IOProperties.BUFFER_SIZE
+                && freeChunks.size() < IOProperties.SPLITTER_WINDOW) {
+            freeChunks.add(c);
+        }
+    }
+
+    /**
+     * Waits for progress of any lane. When slow receiver detection is
+     * enabled, lanes that did not make progress in time are reported.
+     */
+    private void laneWait() {
+        int timeout = IOProperties.SPLITTER_TIMEOUT;
+        try {
+            if (timeout > 0) {
+                wait(timeout);
+            } else {
+                wait();
+            }
+        } catch (Exception e) {
+            // Ignored
+        }
+        if (timeout <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Lane l : lanes) {
+            if (! l.dead && ! l.reported && l.busy
+                    && now - l.busySince >= timeout) {
+                l.reported = true;
+                logger.warn("Slow receiver: no progress on stream " + l.stream
+                        + " for " + (now - l.busySince) + " ms");
+                laneFailed(l, new IOException("Slow receiver: no progress for "
+                        + (now - l.busySince) + " ms"));
+            }
+        }
+    }
+
+    /** Called with the lock held. */
+    private void laneFailed(Lane l, IOException e) {
+        if (l.dead) {
+            return;
+        }
+        if (savedException == null) {
+            savedException = new SplitterException();
+        }
+        savedException.add(l.stream, e);
+        if (removeOnException) {
+            kill(l);
+        }
+    }
+
+    /**
+     * Marks a lane as dead and releases its queued chunks, except the one
+     * it may be writing at the moment. Called with the lock held.
+     */
+    private void kill(Lane l) {
+        if (l.dead) {
+            return;
+        }
+        l.dead = true;
+        int skip = l.busy ? 1 : 0;
+        while (l.queue.size() > skip) {
+            release(l.queue.removeLast());
+        }
+        l.queue.clear();
+        notifyAll();
+    }
 }
@@ -0,0 +1,50 @@
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+/**
+ * The <code>RuntimeAccessor</code> class is the base class for classes that
+ * are generated at runtime by the {@link RuntimeGenerator} for classes that
+ * were not rewritten by the IOGenerator. A generated accessor writes and
+ * reads the serializable fields of one class level, in the same order and
+ * format as the default reflective path of the Ibis serialization streams.
+ * Fields that the generated class cannot access directly are accessed
+ * through the <code>fields</code> array.
+ */
+public abstract class RuntimeAccessor {
+
+    /** The serializable fields of the class, sorted as in the type info. */
+    protected final Field[] fields;
+
+    protected RuntimeAccessor(Field[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Writes the serializable fields of one class level of the object.
+     * @param out the stream to write to.
+     * @param ref the object.
+     * @exception IOException is thrown on an IO error.
+     * @exception IllegalAccessException is thrown when a field could not
+     *     be read.
+     */
+    public abstract void writeFields(IbisSerializationOutputStream out,
+            Object ref) throws IOException, IllegalAccessException;
+
+    /**
+     * Reads the serializable fields of one class level of the object.
+     * @param in the stream to read from.
+     * @param ref the object.
+     * @exception IOException is thrown on an IO error.
+     * @exception ClassNotFoundException is thrown when the class of a
+     *     field value could not be loaded.
+     * @exception IllegalAccessException is thrown when a field could not
+     *     be assigned.
+     */
+    public abstract void readFields(IbisSerializationInputStream in,
+            Object ref)
+            throws IOException, ClassNotFoundException, IllegalAccessException;
+}
@@ -0,0 +1,382 @@
+/* $Id$ */
+
+package ibis.io;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.WeakHashMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.AALOAD;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.ReferenceType;
+import org.apache.bcel.generic.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates, at runtime, a {@link RuntimeAccessor} for a class that was not
+ * rewritten by the IOGenerator. The generated code reads and writes fields
+ * directly where the JVM allows that, which is the case for non-private
+ * fields when the accessor can be defined in the class loader of the class,
+ * and for public fields of public classes otherwise. All other fields are
+ * accessed through reflection, as in {@link AlternativeTypeInfo}.
+ * Generated accessors are defined in the class loader of the class if
+ * possible, and otherwise in a class loader that is cached per class loader.
+ */
+final class RuntimeGenerator {
+
+    private static final Logger logger
+            = LoggerFactory.getLogger(RuntimeGenerator.class);
+
+    private static final String ACCESSOR = RuntimeAccessor.class.getName();
+
+    private static final String OUTPUT = IbisSerializationOutputStream.class
+            .getName();
+
+    private static final String INPUT = IbisSerializationInputStream.class
+            .getName();
+
+    private static final ObjectType FIELD_TYPE = new ObjectType(Field.class
+            .getName());
+
+    private static final Type FIELDS_TYPE = new ArrayType(FIELD_TYPE, 1);
+
+    /** ClassLoader.defineClass, if we may use it. */
+    private static Method defineClass = null;
+
+    /**
+     * Class loaders for generated accessors, per class loader. The values
+     * are weak as well, because an accessor loader refers to its parent.
+     */
+    private static final WeakHashMap<ClassLoader,
+            WeakReference<AccessorLoader>> loaders
+            = new WeakHashMap<ClassLoader, WeakReference<AccessorLoader>>();
+
+    private static int count = 0;
+
+    static {
+        try {
+            final Method m = ClassLoader.class.getDeclaredMethod(
+                    "defineClass", new Class<?>[] { String.class, byte[].class,
+                            Integer.TYPE, Integer.TYPE });
+            AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                public Object run() {
+                    m.setAccessible(true);
+                    return null;
+                }
+            });
+            defineClass = m;
+        } catch (Throwable e) {
+            logger.debug("Cannot define accessors in foreign class loaders", e);
+        }
+    }
+
+    /** Class loader that defines accessors that cannot be injected. */
+    private static final class AccessorLoader extends ClassLoader {
+        AccessorLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private RuntimeGenerator() {
+        // prevent construction.
+    }
+
+    /**
+     * Generates an accessor for the specified type info.
+     * @param t the type info.
+     * @return the accessor, or <code>null</code> if there is no use in
+     *     generating one for this class, or it failed.
+     */
+    static RuntimeAccessor generate(AlternativeTypeInfo t) {
+        Class<?> clazz = t.clazz;
+        Field[] fields = t.serializable_fields;
+
+        if (fields == null || fields.length == 0
+                || t.serial_persistent_fields != null || clazz.isArray()) {
+            return null;
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null || t.fields_final[i]) {
+                return null;
+            }
+        }
+
+        ClassLoader loader = clazz.getClassLoader();
+        boolean inject = defineClass != null && loader != null
+                && ! clazz.getName().startsWith("java.")
+                && sees(loader, RuntimeAccessor.class);
+
+        boolean[] direct = new boolean[fields.length];
+        boolean any = false;
+        if (inject || isPublic(clazz)) {
+            for (int i = 0; i < fields.length; i++) {
+                direct[i] = accessible(fields[i], clazz, inject);
+                any |= direct[i];
+            }
+        }
+
+        if (! any) {
+            // Nothing to gain.
+            return null;
+        }
+
+        String name;
+        synchronized (RuntimeGenerator.class) {
+            count++;
+            if (inject) {
+                name = clazz.getName() + "_ibis_io_RuntimeAccessor" + count;
+            } else {
+                name = "ibis.io.generated." + clazz.getName().replace('.', '_')
+                    + "_RuntimeAccessor" + count;
+            }
+        }
+
+        try {
+            byte[] code = generateCode(name, clazz, fields, direct);
+            Class<?> cl;
+            if (inject) {
+                cl = (Class<?>) defineClass.invoke(loader, new Object[] {
+                        name, code, new Integer(0), new Integer(code.length) });
+            } else {
+                cl = getLoader(clazz).define(name, code);
+            }
+            RuntimeAccessor a = (RuntimeAccessor) cl.getConstructor(
+                    new Class<?>[] { Field[].class }).newInstance(
+                    new Object[] { fields });
+            if (logger.isDebugEnabled()) {
+                logger.debug("Generated runtime accessor " + name);
+            }
+            return a;
+        } catch (Throwable e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Could not generate runtime accessor for "
+                        + clazz.getName(), e);
+            }
+            return null;
+        }
+    }
+
+    private static boolean sees(ClassLoader loader, Class<?> c) {
+        try {
+            return Class.forName(c.getName(), false, loader) == c;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static synchronized AccessorLoader getLoader(Class<?> clazz) {
+        ClassLoader parent = clazz.getClassLoader();
+        if (parent == null || ! sees(parent, RuntimeAccessor.class)) {
+            // The accessor must see both the class and ibis.io. Classes
+            // of the bootstrap class loader are visible from ours.
+            parent = RuntimeAccessor.class.getClassLoader();
+        }
+        WeakReference<AccessorLoader> r = loaders.get(parent);
+        AccessorLoader l = r == null ? null : r.get();
+        if (l == null) {
+            l = new AccessorLoader(parent);
+            loaders.put(parent, new WeakReference<AccessorLoader>(l));
+        }
+        return l;
+    }
+
+    private static boolean isPublic(Class<?> c) {
+        while (c.isArray()) {
+            c = c.getComponentType();
+        }
+        return c.isPrimitive() || Modifier.isPublic(c.getModifiers());
+    }
+
+    /**
+     * Determines whether the generated accessor may access the specified
+     * type without reflection.
+     */
+    private static boolean typeAccessible(Class<?> c, Class<?> clazz,
+            boolean samePackage) {
+        while (c.isArray()) {
+            c = c.getComponentType();
+        }
+        if (isPublic(c)) {
+            return true;
+        }
+        return samePackage && c.getClassLoader() == clazz.getClassLoader()
+                && packageOf(c).equals(packageOf(clazz));
+    }
+
+    private static String packageOf(Class<?> c) {
+        String n = c.getName();
+        int i = n.lastIndexOf('.');
+        return i < 0 ? "" : n.substring(0, i);
+    }
+
+    private static boolean accessible(Field f, Class<?> clazz,
+            boolean samePackage) {
+        int mod = f.getModifiers();
+        if (Modifier.isPrivate(mod) || Modifier.isFinal(mod)) {
+            return false;
+        }
+        if (! Modifier.isPublic(mod) && ! samePackage) {
+            return false;
+        }
+        return typeAccessible(f.getType(), clazz, samePackage);
+    }
+
+    private static String suffix(Class<?> tp) {
+        if (tp == Double.TYPE) {
+            return "Double";
+        } else if (tp == Long.TYPE) {
+            return "Long";
+        } else if (tp == Float.TYPE) {
+            return "Float";
+        } else if (tp == Integer.TYPE) {
+            return "Int";
+        } else if (tp == Short.TYPE) {
+            return "Short";
+        } else if (tp == Character.TYPE) {
+            return "Char";
+        } else if (tp == Byte.TYPE) {
+            return "Byte";
+        } else if (tp == Boolean.TYPE) {
+            return "Boolean";
+        }
+        return "Object";
+    }
+
+    private static byte[] generateCode(String name, Class<?> clazz,
+            Field[] fields, boolean[] direct) {
+        ClassGen gen = new ClassGen(name, ACCESSOR, "<generated>",
+                Constants.ACC_PUBLIC | Constants.ACC_FINAL
+                        | Constants.ACC_SUPER, null);
+        ConstantPoolGen cp = gen.getConstantPool();
+        InstructionFactory factory = new InstructionFactory(gen);
+        String classname = clazz.getName();
+        ObjectType classtype = new ObjectType(classname);
+
+        // Constructor: just call super(fields).
+        InstructionList il = new InstructionList();
+        il.append(new ALOAD(0));
+        il.append(new ALOAD(1));
+        il.append(factory.createInvoke(ACCESSOR, "<init>", Type.VOID,
+                new Type[] { FIELDS_TYPE }, Constants.INVOKESPECIAL));
+        il.append(InstructionFactory.createReturn(Type.VOID));
+        MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID,
+                new Type[] { FIELDS_TYPE }, new String[] { "fields" },
+                "<init>", name, il, cp);
+        addMethod(gen, mg, il);
+
+        // writeFields(IbisSerializationOutputStream out, Object ref)
+        il = new InstructionList();
+        il.append(new ALOAD(2));
+        il.append(factory.createCheckCast(classtype));
+        il.append(new ASTORE(3));
+        for (int i = 0; i < fields.length; i++) {
+            Class<?> tp = fields[i].getType();
+            boolean primitive = tp.isPrimitive();
+            Type btp = primitive ? Type.getType(tp) : Type.OBJECT;
+            il.append(new ALOAD(1));
+            if (direct[i]) {
+                il.append(new ALOAD(3));
+                il.append(factory.createFieldAccess(classname,
+                        fields[i].getName(), Type.getType(tp),
+                        Constants.GETFIELD));
+            } else {
+                loadField(il, factory, name, cp, i);
+                il.append(new ALOAD(2));
+                il.append(factory.createInvoke(Field.class.getName(),
+                        primitive ? "get" + suffix(tp) : "get", btp,
+                        new Type[] { Type.OBJECT }, Constants.INVOKEVIRTUAL));
+            }
+            il.append(factory.createInvoke(OUTPUT, "write" + suffix(tp),
+                    Type.VOID, new Type[] { btp }, Constants.INVOKEVIRTUAL));
+        }
+        il.append(InstructionFactory.createReturn(Type.VOID));
+        mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, new Type[] {
+                new ObjectType(OUTPUT), Type.OBJECT }, new String[] { "out",
+                "ref" }, "writeFields", name, il, cp);
+        mg.addException("java.io.IOException");
+        mg.addException("java.lang.IllegalAccessException");
+        addMethod(gen, mg, il);
+
+        // readFields(IbisSerializationInputStream in, Object ref)
+        il = new InstructionList();
+        il.append(new ALOAD(2));
+        il.append(factory.createCheckCast(classtype));
+        il.append(new ASTORE(3));
+        for (int i = 0; i < fields.length; i++) {
+            Class<?> tp = fields[i].getType();
+            boolean primitive = tp.isPrimitive();
+            Type btp = primitive ? Type.getType(tp) : Type.OBJECT;
+            if (direct[i]) {
+                il.append(new ALOAD(3));
+            } else {
+                loadField(il, factory, name, cp, i);
+                il.append(new ALOAD(2));
+            }
+            il.append(new ALOAD(1));
+            il.append(factory.createInvoke(INPUT, "read" + suffix(tp), btp,
+                    Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+            if (direct[i]) {
+                Type ftp = Type.getType(tp);
+                if (! primitive) {
+                    il.append(factory.createCheckCast((ReferenceType) ftp));
+                }
+                il.append(factory.createFieldAccess(classname,
+                        fields[i].getName(), ftp, Constants.PUTFIELD));
+            } else {
+                il.append(factory.createInvoke(Field.class.getName(),
+                        primitive ? "set" + suffix(tp) : "set", Type.VOID,
+                        new Type[] { Type.OBJECT, btp },
+                        Constants.INVOKEVIRTUAL));
+            }
+        }
+        il.append(InstructionFactory.createReturn(Type.VOID));
+        mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, new Type[] {
+                new ObjectType(INPUT), Type.OBJECT }, new String[] { "in",
+                "ref" }, "readFields", name, il, cp);
+        mg.addException("java.io.IOException");
+        mg.addException("java.lang.ClassNotFoundException");
+        mg.addException("java.lang.IllegalAccessException");
+        addMethod(gen, mg, il);
+
+        return gen.getJavaClass().getBytes();
+    }
+
+    /** Pushes <code>this.fields[i]</code>. */
+    private static void loadField(InstructionList il,
+            InstructionFactory factory, String name, ConstantPoolGen cp,
+            int i) {
+        il.append(new ALOAD(0));
+        il.append(factory.createFieldAccess(ACCESSOR, "fields", FIELDS_TYPE,
+                Constants.GETFIELD));
+        il.append(new PUSH(cp, i));
+        il.append(new AALOAD());
+    }
+
+    private static void addMethod(ClassGen gen, MethodGen mg,
+            InstructionList il) {
+        mg.setMaxStack();
+        mg.setMaxLocals();
+        gen.addMethod(mg.getMethod());
+        il.dispose();
+    }
+}
@@ -4,6 +4,10 @@ import java.io.IOException;
 import java.io.ObjectStreamClass;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
 
 class SunJavaStuff extends JavaDependantStuff {
 
@@ -79,11 +83,75 @@ class SunJavaStuff extends JavaDependantStuff {
         }
     }
 
+    /**
+     * The final instance fields of the class, made accessible, by name.
+     * Filled in the constructor and not changed afterwards.
+     */
+    private final HashMap<String, Field> finalFields
+            = new HashMap<String, Field>();
+
+    /**
+     * The Unsafe field offsets of the final instance fields, by name. Only
+     * filled when the fields cannot be assigned through {@link Field}.
+     */
+    private final HashMap<String, Object> offsets
+            = new HashMap<String, Object>();
+
     SunJavaStuff(Class<?> clazz) {
         super(clazz);
         if (! available) {
             throw new Error("SunJavaStuff not available");
         }
+        try {
+            Field[] fields = clazz.getDeclaredFields();
+            for (int i = 0; i < fields.length; i++) {
+                int mod = fields[i].getModifiers();
+                if ((mod & (Modifier.FINAL | Modifier.STATIC))
+                        == Modifier.FINAL) {
+                    Field f = makeAccessible(fields[i]);
+                    finalFields.put(f.getName(), f);
+                    if (! finalFieldsSettable) {
+                        offsets.put(f.getName(), unsafeObjectFieldOffsetMethod
+                                .invoke(unsafe, f));
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            // The tables are incomplete, the fields are looked up when
+            // needed.
+            if (DEBUG && logger.isDebugEnabled()) {
+                logger.debug("Could not compute field table for " + clazz, e);
+            }
+        }
+    }
+
+    private static Field makeAccessible(final Field f) {
+        // Fields obtained through reflection are fresh copies, so there is no
+        // point in asking whether this one is accessible already.
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                f.setAccessible(true);
+                return null;
+            }
+        });
+        return f;
+    }
+
+    private Field getField(String fieldname) throws Exception {
+        Field f = finalFields.get(fieldname);
+        if (f == null) {
+            f = makeAccessible(clazz.getDeclaredField(fieldname));
+        }
+        return f;
+    }
+
+    private Object getOffset(String fieldname) throws Exception {
+        Object key = offsets.get(fieldname);
+        if (key == null) {
+            key = unsafeObjectFieldOffsetMethod.invoke(unsafe,
+                    clazz.getDeclaredField(fieldname));
+        }
+        return key;
     }
 
     /**
@@ -101,9 +169,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldDouble(Object ref, String fieldname, double d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutDoubleMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setDouble(ref, d);
+            } else {
+                unsafePutDoubleMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -115,10 +186,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldLong(Object ref, String fieldname, long d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutLongMethod.invoke(unsafe, ref, key, d);
-            return;
+            if (finalFieldsSettable) {
+                getField(fieldname).setLong(ref, d);
+            } else {
+                unsafePutLongMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -130,9 +203,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldFloat(Object ref, String fieldname, float d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutFloatMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setFloat(ref, d);
+            } else {
+                unsafePutFloatMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -144,9 +220,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldInt(Object ref, String fieldname, int d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutIntMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setInt(ref, d);
+            } else {
+                unsafePutIntMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -158,9 +237,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldShort(Object ref, String fieldname, short d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutShortMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setShort(ref, d);
+            } else {
+                unsafePutShortMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -172,9 +254,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldChar(Object ref, String fieldname, char d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutCharMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setChar(ref, d);
+            } else {
+                unsafePutCharMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -186,9 +271,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldByte(Object ref, String fieldname, byte d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutByteMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setByte(ref, d);
+            } else {
+                unsafePutByteMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -200,9 +288,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldBoolean(Object ref, String fieldname, boolean d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutBooleanMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).setBoolean(ref, d);
+            } else {
+                unsafePutBooleanMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -214,9 +305,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldString(Object ref, String fieldname, String d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutObjectMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).set(ref, d);
+            } else {
+                unsafePutObjectMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -229,9 +323,12 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldClass(Object ref, String fieldname, Class<?> d)
             throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutObjectMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                getField(fieldname).set(ref, d);
+            } else {
+                unsafePutObjectMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -246,12 +343,16 @@ class SunJavaStuff extends JavaDependantStuff {
     public void setFieldObject(Object ref, String fieldname, Object d,
             String fieldsig) throws IOException {
         try {
-            Field f = clazz.getDeclaredField(fieldname);
+            Field f = getField(fieldname);
             if (d != null && !f.getType().isInstance(d)) {
                 throw new IbisIOException("wrong field type");
             }
-            Object key = unsafeObjectFieldOffsetMethod.invoke(unsafe, f);
-            unsafePutObjectMethod.invoke(unsafe, ref, key, d);
+            if (finalFieldsSettable) {
+                f.set(ref, d);
+            } else {
+                unsafePutObjectMethod.invoke(unsafe, ref,
+                        getOffset(fieldname), d);
+            }
         } catch (Throwable ex) {
             throw new IbisIOException("got exception", ex);
         }
@@ -3,6 +3,8 @@
 package ibis.ipl;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -11,24 +13,34 @@ import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 /**
- * This is the class responsible for starting an Ibis instance. During
- * initialization, this class determines which Ibis implementations are
- * available. It does so by finding all jar files in either the class path or
- * all jar files in the directories indicated by the ibis.ipl.impl.path
- * property. All Ibis implementations should be mentioned in the main properties
- * of the manifest of the jar file containing it, in the "Ibis-Starter" entry.
+ * This is the class responsible for starting an Ibis instance. When an Ibis is
+ * created, this class determines which Ibis implementations are available. It
+ * does so by finding all jar files in either the class path or all jar files
+ * in the directories indicated by the ibis.ipl.impl.path property. All Ibis
+ * implementations should be mentioned in the main properties of the manifest
+ * of the jar file containing it, in the "Ibis-Starter" entry.
  * This entry should contain a comma- or space-separated list of class names,
  * where each class named provides an {@link IbisStarter} implementation. In
  * addition, a property "Ibis-IPL-Version" should be defined in the manifest,
  * containing a version number (e.g. 2.1).
+ * <p>
+ * Starters are only created when needed: if the user specifies an
+ * implementation, only the starter of that implementation is created. If, in
+ * addition, the search path is the class path, the list of implementations in
+ * the IPL manifest property file is consulted first, so no jar files need to
+ * be opened. If the ibis.implementation.index property is set, the
+ * implementations found in jar files are cached in the file it names, so jar
+ * files that did not change are not opened again.
  */
 public final class IbisFactory {
 
@@ -113,16 +125,83 @@ public final class IbisFactory {
     }
 
     /**
-     * List of all available implementations.
+     * An Ibis implementation that was found. Its starter is only created when
+     * it is needed, so selecting an implementation does not load the classes
+     * of all others.
      */
-    private Map<String, IbisStarter> implementations;
+    private static final class Implementation {
+        private final String nickName;
+
+        private final String starterClass;
+
+        private final String iplVersion;
+
+        private final String implementationVersion;
+
+        private final ClassLoader classLoader;
+
+        private IbisStarter starter = null;
+
+        private boolean failed = false;
+
+        /**
+         * Implementation with the same nickname found in a jar file, used
+         * if the starter of this one cannot be created.
+         */
+        Implementation fallback = null;
+
+        Implementation(String nickName, String starterClass,
+                String iplVersion, String implementationVersion,
+                ClassLoader classLoader) {
+            this.nickName = nickName;
+            this.starterClass = starterClass;
+            this.iplVersion = iplVersion;
+            this.implementationVersion = implementationVersion;
+            this.classLoader = classLoader;
+        }
+
+        /**
+         * Returns the starter of this implementation, or null if it cannot be
+         * created.
+         */
+        synchronized IbisStarter getStarter() {
+            if (starter == null && !failed) {
+                starter = IbisStarter.createInstance(starterClass,
+                        classLoader, nickName, iplVersion,
+                        implementationVersion);
+                failed = starter == null;
+            }
+            if (starter == null && fallback != null) {
+                return fallback.getStarter();
+            }
+            return starter;
+        }
+    }
+
+    /**
+     * Implementations found so far, by nickname.
+     */
+    private final Map<String, Implementation> implementations = new HashMap<String, Implementation>();
+
+    /** Path searched for implementations, or null for the class path. */
+    private final String implementationPath;
+
+    /** File caching the implementations in jar files, or null if none. */
+    private final File index;
+
+    private boolean manifestFileLoaded = false;
+
+    private boolean jarsLoaded = false;
 
     private IbisFactory() {
         // DO NOT USE
+        implementationPath = null;
+        index = null;
     }
 
     /**
      * Constructs an Ibis factory, with the specified search path.
+     * Implementations are only searched for when an Ibis is created.
      * 
      * @param implementationPath
      *            the path to search for implementations.
@@ -130,19 +209,72 @@ public final class IbisFactory {
      *            the properties to be used.
      */
     private IbisFactory(String implementationPath, Properties properties) {
+        this.implementationPath = implementationPath;
+
+        String index = properties
+                .getProperty(IbisProperties.IMPLEMENTATION_INDEX);
+        this.index = index == null ? null : new File(index);
+    }
+
+    /**
+     * Returns the starter of the implementation with the given nickname, or
+     * null if there is none. On the class path, the implementations listed in
+     * the IPL manifest property file (written when Ibis is built) are tried
+     * first, so no jar files are opened at all if the implementation is one
+     * of them. As always, the entries of the IPL manifest property file take
+     * precedence over the implementations found in jar files.
+     */
+    private synchronized IbisStarter getStarter(String nickName)
+            throws IbisCreationFailedException {
+        if (implementationPath == null) {
+            loadIbisesFromManifestFile();
+        }
+
+        Implementation implementation = implementations.get(nickName);
+        if (implementation == null || implementation.getStarter() == null) {
+            loadAllIbises();
+            implementation = implementations.get(nickName);
+        }
+
+        if (implementation == null) {
+            return null;
+        }
+        return implementation.getStarter();
+    }
+
+    /**
+     * Returns the starters of all available implementations.
+     */
+    private synchronized ArrayList<IbisStarter> getStarters()
+            throws IbisCreationFailedException {
+        loadAllIbises();
+
+        ArrayList<IbisStarter> result = new ArrayList<IbisStarter>();
+        for (Implementation implementation : implementations.values()) {
+            IbisStarter starter = implementation.getStarter();
+            if (starter != null) {
+                result.add(starter);
+            }
+        }
+        return result;
+    }
 
-        implementations = new HashMap<String, IbisStarter>();
+    private void loadAllIbises() throws IbisCreationFailedException {
+        if (!jarsLoaded) {
+            jarsLoaded = true;
 
-        // load implementations from jar path
+            // load implementations from manifest property file, these take
+            // precedence over the ones in the jar files
 
-        loadIbisesFromJars(implementationPath);
+            loadIbisesFromManifestFile();
 
-        // load implementations from manifest property file
+            // load implementations from jar path
 
-        loadIbisesFromManifestFile();
+            loadIbisesFromJars(implementationPath);
+        }
 
         if (implementations.size() == 0) {
-            throw new IbisConfigurationException(
+            throw new IbisCreationFailedException(
                     "Cannot find any Ibis implementations");
         }
     }
@@ -497,7 +629,7 @@ public final class IbisFactory {
 
             StringBuffer str = new StringBuffer();
             str.append("IPL implementations:");
-            for (IbisStarter starter : implementations.values()) {
+            for (IbisStarter starter : getStarters()) {
                 str.append(" ");
                 str.append(starter.getNickName());
             }
@@ -541,7 +673,7 @@ public final class IbisFactory {
         // The user specified an implementation. Try to find it, and see if it
         // matches the requirements
         if (specifiedImplementation != null) {
-            IbisStarter starter = implementations.get(specifiedImplementation);
+            IbisStarter starter = getStarter(specifiedImplementation);
 
             if (starter == null) {
                 throw new IbisCreationFailedException(
@@ -577,7 +709,7 @@ public final class IbisFactory {
 
         // find all matching implementations
         ArrayList<IbisStarter> matchingIbises = new ArrayList<IbisStarter>();
-        for (IbisStarter starter : implementations.values()) {
+        for (IbisStarter starter : getStarters()) {
             if (starter.matches(requiredCapabilities, portTypes)) {
                 matchingIbises.add(starter);
             }
@@ -618,32 +750,11 @@ public final class IbisFactory {
     }
 
     /**
-     * Creates a JarFile object from a given File object.
-     */
-    private static JarFile getJarFile(File file) {
-        try {
-            if (!file.isFile() || !file.getName().endsWith(".jar")) {
-                // not a jar file
-                return null;
-            }
-            JarFile result = new JarFile(file, true);
-            Manifest manifest = result.getManifest();
-            if (manifest != null) {
-                manifest.getMainAttributes();
-                return result;
-            }
-        } catch (IOException e) {
-            System.err.println("IbisFactory: Could not create jar file from file: " + file);
-        }
-        return null;
-    }
-
-    /**
-     * This method reads all jar files found in the specified path, and stores
-     * them in a list.
+     * Returns all jar files found in the specified path: the jar files in it,
+     * and the jar files in the directories in it.
      */
-    private static JarFile[] readJarFiles(String path) {
-        ArrayList<JarFile> result = new ArrayList<JarFile>();
+    private static File[] findJarFiles(String path) {
+        ArrayList<File> result = new ArrayList<File>();
 
         StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
 
@@ -653,61 +764,145 @@ public final class IbisFactory {
             File file = new File(dir);
 
             if (file.isFile()) {
-                JarFile jarFile = getJarFile(file);
-                if (jarFile != null) {
-                    result.add(jarFile);
+                if (isJarFile(file)) {
+                    result.add(file);
                 }
             } else if (file.isDirectory()) {
                 File[] children = file.listFiles();
                 for (File child : children) {
-                    JarFile jarFile = getJarFile(child);
-                    if (jarFile != null) {
-                        result.add(jarFile);
+                    if (isJarFile(child)) {
+                        result.add(child);
                     }
                 }
             } else {
                 System.err.println("IbisFactory: Not a file/directory: " + file);
             }
         }
-        return result.toArray(new JarFile[0]);
+        return result.toArray(new File[0]);
     }
 
-    private static IbisStarter loadIbisFromJar(JarFile jar,
-            ClassLoader classLoader) {
+    private static boolean isJarFile(File file) {
+        return file.isFile() && file.getName().endsWith(".jar");
+    }
 
+    /**
+     * Reads the Ibis implementation from the manifest of a jar file.
+     * 
+     * @return the nickname, starter class, IPL version and implementation
+     *         version of the implementation, or null if the jar file does not
+     *         contain one.
+     */
+    private static String[] readImplementation(File file) {
+        JarFile jar = null;
         try {
+            jar = new JarFile(file, true);
             Manifest manifest = jar.getManifest();
+            if (manifest == null) {
+                return null;
+            }
 
             Attributes attributes = manifest.getMainAttributes();
 
+            String nickName = attributes.getValue(NICKNAME_STRING);
+            String starterClass = attributes.getValue(STARTER_CLASS_STRING);
             String iplVersion = attributes.getValue(IPL_VERSION_STRING);
             String implementationVersion = attributes
                     .getValue(IMPLEMENTATION_VERSION_STRING);
-            String nickName = attributes.getValue(NICKNAME_STRING);
-            String starterClass = attributes.getValue(STARTER_CLASS_STRING);
 
-            if (iplVersion == null || !iplVersion.startsWith(VERSION)
-                    || implementationVersion == null || nickName == null
-                    || starterClass == null) {
+            if (nickName == null || starterClass == null
+                    || iplVersion == null || implementationVersion == null) {
                 return null;
             }
-
-            return IbisStarter.createInstance(starterClass, classLoader,
-                    nickName, iplVersion, implementationVersion);
+            return new String[] { nickName, starterClass, iplVersion,
+                    implementationVersion };
         } catch (Exception e) {
-            System.err.println("IbisFactory: Could not load ibis from jar: " + jar.getName()
-                    + ": " + e);
+            System.err.println("IbisFactory: Could not load ibis from jar: "
+                    + file + ": " + e);
+            return null;
+        } finally {
+            if (jar != null) {
+                try {
+                    jar.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the index of jar files, if there is one. Each entry maps the path
+     * of a jar file to its modification time and length, followed by the
+     * nickname, starter class, IPL version and implementation version of the
+     * implementation it contains, if any. All separated by spaces.
+     * 
+     * @return the index, or null if no index is used.
+     */
+    private Properties readIndex() {
+        if (index == null) {
             return null;
         }
+
+        Properties result = new Properties();
+        if (!index.isFile()) {
+            return result;
+        }
+        try {
+            FileInputStream in = new FileInputStream(index);
+            try {
+                result.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("IbisFactory: Could not read implementation index "
+                    + index + ": " + e);
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the index of jar files. The new index is written to a
+     * temporary file first, so other processes never see a partial index.
+     */
+    private void writeIndex(Properties entries) {
+        File tmp = null;
+        try {
+            File dir = index.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory()) {
+                dir.mkdirs();
+            }
+            tmp = File.createTempFile(index.getName(), ".tmp", dir);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                entries.store(out, "Ibis implementations found in jar files");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(index)) {
+                // some platforms do not replace existing files
+                index.delete();
+                if (!tmp.renameTo(index)) {
+                    throw new IOException("could not replace " + index);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IbisFactory: Could not write implementation index "
+                    + index + ": " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
     }
 
     private void loadIbisesFromJars(String implementationPath) {
-        JarFile[] jarFiles;
+        File[] jarFiles;
 
         if (implementationPath == null) {
             implementationPath = System.getProperty("java.class.path");
         }
-        jarFiles = readJarFiles(implementationPath);
+        jarFiles = findJarFiles(implementationPath);
 
         // create ClassLoader for jar files
 
@@ -715,8 +910,7 @@ public final class IbisFactory {
 
         for (int i = 0; i < jarFiles.length; i++) {
             try {
-                File f = new File(jarFiles[i].getName());
-                urls[i] = f.toURI().toURL();
+                urls[i] = jarFiles[i].toURI().toURL();
             } catch (Exception e) {
                 throw new Error(e);
             }
@@ -725,16 +919,68 @@ public final class IbisFactory {
         ClassLoader classLoader = new URLClassLoader(urls, this.getClass()
                 .getClassLoader());
 
-        for (int i = 0; i < jarFiles.length; i++) {
-            IbisStarter starter = loadIbisFromJar(jarFiles[i], classLoader);
+        // implementations listed in the manifest property file
+        Set<String> listed = new HashSet<String>(implementations.keySet());
+
+        // jar files that did not change since they were indexed need not be
+        // opened
+        Properties entries = readIndex();
+        boolean indexChanged = false;
+
+        for (File file : jarFiles) {
+            String key = file.getAbsolutePath();
+            String stamp = file.lastModified() + " " + file.length();
+            String[] implementation = null;
+
+            String entry = entries == null ? null : entries.getProperty(key);
+            if (entry != null && (entry + " ").startsWith(stamp + " ")) {
+                String[] fields = entry.split(" ");
+                if (fields.length == 6) {
+                    implementation = new String[] { fields[2], fields[3],
+                            fields[4], fields[5] };
+                }
+            } else {
+                implementation = readImplementation(file);
+                if (entries != null) {
+                    if (implementation != null) {
+                        for (String field : implementation) {
+                            stamp = stamp + " " + field;
+                        }
+                    }
+                    entries.setProperty(key, stamp);
+                    indexChanged = true;
+                }
+            }
 
-            if (starter != null) {
-                implementations.put(starter.getNickName(), starter);
+            if (implementation == null
+                    || !implementation[2].startsWith(VERSION)) {
+                continue;
             }
+
+            Implementation found = new Implementation(implementation[0],
+                    implementation[1], implementation[2], implementation[3],
+                    classLoader);
+
+            if (listed.contains(implementation[0])) {
+                // the manifest property file takes precedence, only use this
+                // one if its starter cannot be created
+                implementations.get(implementation[0]).fallback = found;
+            } else {
+                implementations.put(implementation[0], found);
+            }
+        }
+
+        if (indexChanged) {
+            writeIndex(entries);
         }
     }
 
     private void loadIbisesFromManifestFile() {
+        if (manifestFileLoaded) {
+            return;
+        }
+        manifestFileLoaded = true;
+
         try {
             ClassLoader classLoader = getClass().getClassLoader();
 
@@ -764,13 +1010,9 @@ public final class IbisFactory {
                     continue;
                 }
 
-                IbisStarter starter = IbisStarter.createInstance(starterClass,
-                        classLoader, nickName, iplVersion,
-                        implementationVersion);
-
-                if (starter != null) {
-                    implementations.put(nickName, starter);
-                }
+                implementations.put(nickName, new Implementation(nickName,
+                        starterClass, iplVersion, implementationVersion,
+                        classLoader));
             }
         } catch (Throwable t) {
             System.err
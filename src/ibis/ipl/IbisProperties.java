@@ -40,6 +40,9 @@ public final class IbisProperties {
     /** Property name for the path used to find Ibis implementations. */
     public static final String IMPLEMENTATION_PATH = PREFIX + "implementation.path";
 
+    /** Property name for the file caching the implementations in jar files. */
+    public static final String IMPLEMENTATION_INDEX = PREFIX + "implementation.index";
+
     /** Property name for verbosity. */
     public static final String VERBOSE = PREFIX + "verbose";
 
@@ -90,6 +93,11 @@ public final class IbisProperties {
 
                 { IMPLEMENTATION_PATH, null, "Path used to find Ibis implementations" },
 
+                { IMPLEMENTATION_INDEX, null,
+                    "File in which the Ibis implementations found in jar files are"
+                            + " cached, so jar files that did not change are not opened"
+                            + " again. Not used if not set" },
+
                 { VERBOSE, "false",
                     "Boolean: If true, makes Ibis more verbose, if false, does not" },
 
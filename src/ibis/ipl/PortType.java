@@ -119,6 +119,16 @@ public final class PortType extends CapabilitySet {
      */
     public final static String RECEIVE_POLL_UPCALLS = RECEIVE + ".pollupcalls";
 
+    /**
+     * This capability describes that message upcalls for messages from
+     * different connections may run concurrently, without the need to call
+     * {@link ReadMessage#finish()} in the upcall. Messages from a single
+     * connection are still delivered one at a time, in the order in which
+     * they arrive.
+     */
+    public final static String RECEIVE_CONCURRENT_UPCALLS
+            = RECEIVE + ".concurrentupcalls";
+
     /**
      * This capability describes that messages from a sendport are delivered
      * to the receiveport(s) in the order in which they were sent.
@@ -20,6 +20,7 @@ import ibis.ipl.registry.Registry;
 import ibis.ipl.support.management.ManagementClient;
 import ibis.ipl.support.vivaldi.Coordinates;
 import ibis.ipl.support.vivaldi.VivaldiClient;
+import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
@@ -86,9 +87,9 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
     /** The sendports running on this Ibis instance. */
     private HashMap<String, SendPort> sendPorts;
     
-    private HashMap<ibis.ipl.IbisIdentifier, Long> sentBytesPerIbis = null;
+    private final HashMap<ibis.ipl.IbisIdentifier, Long> sentBytesPerIbis;
     
-    private HashMap<ibis.ipl.IbisIdentifier, Long> receivedBytesPerIbis = null;
+    private final HashMap<ibis.ipl.IbisIdentifier, Long> receivedBytesPerIbis;
 
     /** Counter for allocating names for anonymous sendports. */
     private static int send_counter = 0;
@@ -218,6 +219,9 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         if (properties.getBooleanProperty("ibis.bytescount")) {
             sentBytesPerIbis = new HashMap<ibis.ipl.IbisIdentifier, Long>();
             receivedBytesPerIbis = new HashMap<ibis.ipl.IbisIdentifier, Long>();
+        } else {
+            sentBytesPerIbis = null;
+            receivedBytesPerIbis = null;
         }
 
         if (properties.getBooleanProperty("ibis.managementclient")) {
@@ -376,12 +380,12 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
     }
     
     
-    synchronized void addReceivedPerIbis(long cnt, ibis.ipl.SendPortIdentifier[] idents) {
+    void addReceivedPerIbis(long cnt, ibis.ipl.SendPortIdentifier ident) {
         if (receivedBytesPerIbis == null) {
             return;
         }
-        for (ibis.ipl.SendPortIdentifier sp : idents) {
-            ibis.ipl.IbisIdentifier i = sp.ibisIdentifier();
+        ibis.ipl.IbisIdentifier i = ident.ibisIdentifier();
+        synchronized(this) {
             Long oldval = receivedBytesPerIbis.get(i);
             if (oldval != null) {
                 cnt += oldval.longValue();
@@ -804,6 +808,12 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         result.put("incomingMessageCount", "" + getIncomingMessageCount());
         result.put("bytesReceived", "" + getBytesReceived());
         result.put("bytesRead", "" + getBytesRead());
+        result.put("threadPoolThreads", "" + ThreadPool.getThreadCount());
+        result.put("threadPoolActive", "" + ThreadPool.getActiveCount());
+        result.put("threadPoolQueued", "" + ThreadPool.getQueuedCount());
+        result.put("threadPoolCreated", "" + ThreadPool.getCreatedCount());
+        result.put("threadPoolMax", "" + ThreadPool.getMaxThreadCount());
+        result.put("threadPoolOverflow", "" + ThreadPool.getOverflowCount());
 
         return result;
     }
@@ -9,6 +9,7 @@ import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
 import ibis.ipl.ReceivePortConnectUpcall;
 import ibis.ipl.ReceiveTimedOutException;
+import ibis.util.TypedProperties;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -16,6 +17,7 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -57,6 +59,12 @@ public abstract class ReceivePort extends Manageable
     /** Receiveport already has a connection, and ManyToOne is not specified. */
     public static final byte NO_MANY_TO_X = 6;
     
+    /**
+     * Maximum number of concurrent upcalls of a port with concurrent
+     * upcalls. 0 means the number of processors.
+     */
+    private static final String UPCALL_CONCURRENCY = "ibis.upcall.concurrency";
+
     final static Set<Thread> threadsInUpcallSet
         = Collections.synchronizedSet(new HashSet<Thread>());
 
@@ -99,7 +107,7 @@ public abstract class ReceivePort extends Manageable
             = new HashMap<SendPortIdentifier, ReceivePortConnectionInfo>();
 
     /** Set when upcalls are enabled. */
-    protected boolean allowUpcalls = false;
+    protected volatile boolean allowUpcalls = false;
 
     /** The Ibis instance of this receive port. */
     protected Ibis ibis;
@@ -111,20 +119,76 @@ public abstract class ReceivePort extends Manageable
     protected final String serialization;
 
     /** Set when this port is closed. */
-    protected boolean closed = false;
+    protected volatile boolean closed = false;
+
+    /**
+     * Lock guarding the delivery of messages: the current message, the
+     * messages waiting to become current, and the message statistics. It is
+     * a separate object, so that delivering and finishing a message does not
+     * take the port monitor, which guards the connections, and does not wake
+     * up threads waiting for connection changes. Implementations that deliver
+     * messages from code that is synchronized on the port itself use the
+     * port as delivery lock instead.
+     */
+    protected final Object delivery;
 
-    /** The current message. */
+    /** The current message. Guarded by {@link #delivery}. */
     protected ReadMessage message = null;
 
     /**
      * Set when the current message has been delivered. Only used for
-     * explicit receive.
+     * explicit receive. Guarded by {@link #delivery}.
      */
     protected boolean delivered = false;
     
     /** Properties. */
     protected final Properties properties;
 
+    /**
+     * A message that arrived while the port was busy with another message.
+     * The thread that delivered it waits on this object, instead of on the
+     * port, until the message is handed to it.
+     */
+    private static final class Handoff {
+        final ReadMessage msg;
+
+        boolean ready = false;
+
+        Handoff(ReadMessage msg) {
+            this.msg = msg;
+        }
+
+        synchronized void waitForTurn() {
+            while (! ready) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+
+        synchronized void signal() {
+            ready = true;
+            notify();
+        }
+    }
+
+    /** Messages waiting to become the current message, in arrival order. */
+    private final LinkedList<Handoff> waiting = new LinkedList<Handoff>();
+
+    /**
+     * Set when upcalls for messages from different connections may run
+     * concurrently. In that case, <code>message</code> is not used.
+     */
+    protected final boolean concurrentUpcalls;
+
+    /** Maximum number of unfinished messages with concurrent upcalls. */
+    private final int maxUpcalls;
+
+    /** Number of unfinished messages with concurrent upcalls. */
+    private int activeUpcalls = 0;
+
     private long nMessages = 0;
     private long messageBytes = 0;
     private long bytes = 0;
@@ -146,10 +210,31 @@ public abstract class ReceivePort extends Manageable
      * @param connectUpcall the connection upcall object, or <code>null</code>.
      * @param properties the port properties.
      */
+    protected ReceivePort(Ibis ibis, PortType type, String name,
+            MessageUpcall upcall, ReceivePortConnectUpcall connectUpcall,
+            Properties properties) throws IOException {
+        this(ibis, type, name, upcall, connectUpcall, properties, false);
+    }
+
+    /**
+     * Constructs a <code>ReceivePort</code> with the specified parameters.
+     * Note that all property checks are already performed in the
+     * <code>Ibis.createReceivePort</code> methods.
+     * @param ibis the ibis instance.
+     * @param type the port type.
+     * @param name the name of the <code>ReceivePort</code>.
+     * @param upcall the message upcall object, or <code>null</code>.
+     * @param connectUpcall the connection upcall object, or <code>null</code>.
+     * @param properties the port properties.
+     * @param portLock set when the implementation waits for changes of the
+     * current message while synchronized on the port, in which case the port
+     * itself is used as {@link #delivery} lock.
+     */
     @SuppressWarnings("unchecked")
 	protected ReceivePort(Ibis ibis, PortType type, String name,
             MessageUpcall upcall, ReceivePortConnectUpcall connectUpcall,
-            Properties properties) throws IOException {
+            Properties properties, boolean portLock) throws IOException {
+        this.delivery = portLock ? this : new Object();
         this.ibis = ibis;
         this.type = type;
         this.name = name;
@@ -167,6 +252,14 @@ public abstract class ReceivePort extends Manageable
                 this.properties.setProperty(key, value);
             }
         }
+        this.concurrentUpcalls = upcall != null
+                && type.hasCapability(PortType.RECEIVE_CONCURRENT_UPCALLS);
+        int max = new TypedProperties(this.properties).getIntProperty(
+                UPCALL_CONCURRENCY, 0);
+        if (max <= 0) {
+            max = Runtime.getRuntime().availableProcessors();
+        }
+        this.maxUpcalls = max;
         if (type.hasCapability(PortType.SERIALIZATION_DATA)) {
             serialization = "data";    
         } else if (type.hasCapability(PortType.SERIALIZATION_OBJECT_SUN)) {
@@ -324,6 +417,9 @@ public abstract class ReceivePort extends Manageable
             closed = true;
             notifyAll();
         }
+        synchronized(delivery) {
+            delivery.notifyAll();
+        }
         closePort(timeout);
         ibis.deRegister(this);
     }
@@ -494,7 +590,7 @@ public abstract class ReceivePort extends Manageable
 
         long deadLine = System.currentTimeMillis() + timeout;
 
-        synchronized(this) {
+        synchronized(delivery) {
             // Wait until a new message is delivered or the port is closed.
             while ((message == null || delivered) && ! closed) {
                 try {
@@ -505,9 +601,9 @@ public abstract class ReceivePort extends Manageable
                                     "timeout expired in receive()");
                         }
                         time = deadLine - time;
-                        wait(time);
+                        delivery.wait(time);
                     } else {
-                        wait();
+                        delivery.wait();
                     }
                 } catch(InterruptedException e) {
                     // ignored
@@ -532,13 +628,15 @@ public abstract class ReceivePort extends Manageable
      * @param msg the message.
      */
     public void doUpcall(ReadMessage msg) {
-        synchronized(this) {
-            // Wait until upcalls are enabled.
-            while (! allowUpcalls) {
-                try {
-                    wait();
-                } catch(InterruptedException e) {
-                    // ignored
+        if (! allowUpcalls) {
+            synchronized(this) {
+                // Wait until upcalls are enabled.
+                while (! allowUpcalls) {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        // ignored
+                    }
                 }
             }
         }
@@ -585,22 +683,62 @@ public abstract class ReceivePort extends Manageable
     }
 
     public void messageArrived(ReadMessage msg) {
-        // Wait until the previous message was finished.
-        synchronized(this) {
-            while (message != null) {
-                try {
-                    wait();
-                } catch(InterruptedException e) {
-                    // ignored.
+        Handoff h = null;
+        synchronized(delivery) {
+            if (concurrentUpcalls) {
+                // Only the number of unfinished messages is limited. The
+                // caller does not read from its connection until this
+                // message is finished, which keeps per-connection order.
+                if (activeUpcalls < maxUpcalls && waiting.size() == 0) {
+                    activeUpcalls++;
+                } else {
+                    h = new Handoff(msg);
+                    waiting.addLast(h);
                 }
+            } else if (message == null && waiting.size() == 0) {
+                message = msg;
+                delivered = false;
+                delivery.notifyAll();
+            } else {
+                // Wait until the previous messages are finished. The port
+                // is handed to the waiting messages in arrival order, so
+                // that finishing a message only wakes up one of them.
+                h = new Handoff(msg);
+                waiting.addLast(h);
             }
-            message = msg;
-            delivered = false;
-            notifyAll();
+        }
+        if (h != null) {
+            h.waitForTurn();
         }
         if (upcall != null) {
-            doUpcall(message);
+            doUpcall(msg);
+        }
+    }
+
+    /**
+     * Makes the first waiting message, if any, the current message. With
+     * concurrent upcalls, it passes the upcall slot of the finished message
+     * on instead. Must be called with the {@link #delivery} lock held, and
+     * the returned hand-off must be signalled after the lock is released.
+     * @return the hand-off to signal, or <code>null</code>.
+     */
+    private Handoff nextMessage() {
+        if (concurrentUpcalls) {
+            if (waiting.size() == 0) {
+                activeUpcalls--;
+                return null;
+            }
+            // The upcall slot goes to the first waiting message.
+            return waiting.removeFirst();
+        }
+        if (waiting.size() == 0) {
+            message = null;
+            return null;
         }
+        Handoff h = waiting.removeFirst();
+        message = h.msg;
+        delivered = false;
+        return h;
     }
 
     /**
@@ -610,17 +748,19 @@ public abstract class ReceivePort extends Manageable
      * @param cnt the byte count of this message.
      */
     public void finishMessage(ReadMessage r, long cnt) {
-	ibis.ipl.SendPortIdentifier[] ports;
-        synchronized(this) {
-            ports = connectedTo();
+        Handoff h;
+        synchronized(delivery) {
             nMessages++;
             messageBytes += cnt;
-            message = null;
-            threadsInUpcallSet.remove(Thread.currentThread());
-            notifyAll();
+            h = nextMessage();
+            delivery.notifyAll();
+        }
+        threadsInUpcallSet.remove(Thread.currentThread());
+        if (h != null) {
+            h.signal();
         }
         // This outside the lock, otherwise deadlock.
-        ibis.addReceivedPerIbis(cnt, ports);
+        ibis.addReceivedPerIbis(cnt, r.origin());
     }
 
     /**
@@ -630,11 +770,34 @@ public abstract class ReceivePort extends Manageable
      * @param r the message.
      * @param e the Exception.
      */
-    public synchronized void finishMessage(ReadMessage r, IOException e) {
+    public void finishMessage(ReadMessage r, IOException e) {
+        Handoff h;
         r.getInfo().close(e);
-        message = null;
+        synchronized(delivery) {
+            h = nextMessage();
+            delivery.notifyAll();
+        }
         threadsInUpcallSet.remove(Thread.currentThread());
-        notifyAll();
+        if (h != null) {
+            h.signal();
+        }
+    }
+
+    /**
+     * Waits until the specified message, which was delivered to this port,
+     * is finished.
+     * @param msg the message.
+     */
+    protected void waitUntilFinished(ReadMessage msg) {
+        synchronized(delivery) {
+            while (! msg.isFinished()) {
+                try {
+                    delivery.wait();
+                } catch(InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
     }
 
     /**
@@ -694,8 +857,8 @@ public abstract class ReceivePort extends Manageable
         setProperty("Bytes", "" + bytes);
         setProperty("ClosedConnections", "" + nClosedConnections);
         setProperty("Connections", "" + nConnections);
-        setProperty("Messages", "" + nMessages);
-        setProperty("MessageBytes", "" + messageBytes);
+        setProperty("Messages", "" + getMessageCount());
+        setProperty("MessageBytes", "" + getBytesRead());
         setProperty("LostConnections", "" + nLostConnections);
     }
     
@@ -713,9 +876,13 @@ public abstract class ReceivePort extends Manageable
         } else if (key.equals("nConnections")) {
             nConnections = Long.parseLong(value);
         } else if (key.equals("Messages")) {
-            nMessages = Long.parseLong(value);
+            synchronized(delivery) {
+                nMessages = Long.parseLong(value);
+            }
         } else if (key.equals("MessageBytes")) {
-            messageBytes = Long.parseLong(value);
+            synchronized(delivery) {
+                messageBytes = Long.parseLong(value);
+            }
         } else if (key.equals("LostConnections")) {
             nLostConnections = Long.parseLong(value);
         }
@@ -739,7 +906,7 @@ public abstract class ReceivePort extends Manageable
             return null;
         }
 
-        synchronized (this) { // Other thread may modify data.
+        synchronized (delivery) { // Other thread may modify data.
             if (message == null || delivered) {
                 return null;
             }
@@ -750,16 +917,20 @@ public abstract class ReceivePort extends Manageable
         }
     }
 
-    synchronized long getMessageCount() {
-        return nMessages;
+    long getMessageCount() {
+        synchronized(delivery) {
+            return nMessages;
+        }
     }
     
     synchronized long getBytesReceived() {
         return bytes;
     }
     
-    synchronized long getBytesRead() {
-        return messageBytes;
+    long getBytesRead() {
+        synchronized(delivery) {
+            return messageBytes;
+        }
     }
 
 }
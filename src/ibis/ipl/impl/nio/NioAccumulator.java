@@ -425,6 +425,7 @@ public abstract class NioAccumulator extends DataOutputStream implements Config
         } catch (BufferOverflowException e) {
             // do this the hard way
             int len = b.limit() - b.position();
+            int limit = b.limit();
             while (len > 0) {
                 if (!bytes.hasRemaining()) {
                     send();
@@ -432,7 +433,8 @@ public abstract class NioAccumulator extends DataOutputStream implements Config
 
                 int size = Math.min(len, bytes.remaining());
                 b.limit(b.position() + size);
-                b.put(b);
+                bytes.put(b);
+                b.limit(limit);
                 len -= size;
             }
         }
@@ -782,17 +782,26 @@ public abstract class NioDissipator extends DataInputStream implements Config,
     }
     
     public void readByteBuffer(ByteBuffer b) throws IOException {
-	if (b.hasArray()) {
-	    readArray(b.array(), b.arrayOffset(), b.limit() - b.position());
-	    b.position(b.limit());
-	} else {
-	    byte[] buf = new byte[b.limit() - b.position()];
-	    readArray(buf);
-	    b.put(buf);
-	}
+        if (b.hasArray()) {
+            readArray(b.array(), b.arrayOffset() + b.position(),
+                    b.limit() - b.position());
+            b.position(b.limit());
+            return;
+        }
+
+        // Copy straight from the receive buffer, without an intermediate
+        // array.
+        while (b.hasRemaining()) {
+            if (!bytes.hasRemaining()) {
+                receive();
+            }
+            int size = Math.min(b.remaining(), bytes.remaining());
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + size);
+            b.put(bytes);
+            bytes.limit(limit);
+        }
     }
-    
-    
 
     /**
      * fills the buffer upto at least "minimum" bytes.
@@ -43,7 +43,7 @@ abstract class NioReceivePort extends ibis.ipl.impl.ReceivePort implements
 
     NioReceivePort(Ibis ibis, PortType type, String name, MessageUpcall upcall,
             ReceivePortConnectUpcall connUpcall, Properties properties) throws IOException {
-        super(ibis, type, name, upcall, connUpcall, properties);
+        super(ibis, type, name, upcall, connUpcall, properties, true);
 
         if (upcall != null) {
             ThreadPool.createNew(this, "NioReceivePort with upcall");
@@ -80,13 +80,16 @@ final class NonBlockingChannelNioAccumulator extends NioAccumulator {
             }
 
             SendBuffer[] copies = SendBuffer.replicate(buffer, nrOfConnections);
+            int copy = 0;
 
             for (int i = 0; i < nrOfConnections; i++) {
                 NioAccumulatorConnection connection = connections[i];
+                // every connection tried gets a copy of its own
+                SendBuffer current = copies[copy++];
                 try {
-                    if (!connection.addToSendList(copies[i])) {
+                    if (!connection.addToSendList(current)) {
                         doFlush(connection);
-                        connection.addToSendList(copies[i]);
+                        connection.addToSendList(current);
                     }
                     connection.send();
                 } catch (IOException e) {
@@ -97,7 +100,7 @@ final class NonBlockingChannelNioAccumulator extends NioAccumulator {
                     nrOfConnections--;
                     connections[i] = connections[nrOfConnections];
                     connections[nrOfConnections] = null;
-                    SendBuffer.recycle(copies[nrOfConnections]);
+                    SendBuffer.recycle(current);
                     i--;
                 }
             }
@@ -131,17 +131,38 @@ final class SendBuffer implements Config {
     }
 
     /**
-     * create copies of a buffer, records how may copies are made so far
+     * Returns read-only views of a buffer, one for each connection it is
+     * sent to. Only the first <code>copies</code> entries of the returned
+     * array may be used. The views share the data of the original, which is
+     * recycled when the last view is recycled. The views are kept with the
+     * original, and are reused when the original is used again.
      */
     synchronized static SendBuffer[] replicate(SendBuffer original, int copies) {
-        SendBuffer[] result = new SendBuffer[copies];
+        SendBuffer[] views = original.views;
+
+        if (views == null || views.length < copies) {
+            SendBuffer[] newViews = new SendBuffer[copies];
+            int old = 0;
+            if (views != null) {
+                System.arraycopy(views, 0, newViews, 0, views.length);
+                old = views.length;
+            }
+            for (int i = old; i < copies; i++) {
+                newViews[i] = new SendBuffer(original);
+            }
+            views = newViews;
+            original.views = views;
+            if (logger.isDebugEnabled()) {
+                logger.debug("SendBuffer: now " + views.length + " views");
+            }
+        }
 
         for (int i = 0; i < copies; i++) {
-            result[i] = new SendBuffer(original);
+            views[i].reset(original);
         }
         original.copies += copies;
 
-        return result;
+        return views;
     }
 
     // number of copies that exist of this buffer
@@ -150,6 +171,9 @@ final class SendBuffer implements Config {
     // original buffer this buffer is a copy of (if applicable)
     SendBuffer parent = null;
 
+    // views of this buffer, created when needed by replicate()
+    private SendBuffer[] views = null;
+
     private static long nextSequenceNr = 0;
 
     ShortBuffer header;
@@ -210,14 +234,27 @@ final class SendBuffer implements Config {
     }
 
     /**
-     * Copy constructor. Acutally only copies byteBuffers;
+     * Copy constructor. Creates a read-only view of the byteBuffers of the
+     * parent, the data itself is not copied.
      */
-    SendBuffer(SendBuffer parent) {
+    private SendBuffer(SendBuffer parent) {
         this.parent = parent;
 
         byteBuffers = new ByteBuffer[NR_OF_BUFFERS];
         for (int i = 0; i < NR_OF_BUFFERS; i++) {
-            byteBuffers[i] = parent.byteBuffers[i].duplicate();
+            byteBuffers[i] = parent.byteBuffers[i].asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Sets the position and limit of the byteBuffers of this view to those
+     * of the (flipped) parent.
+     */
+    private void reset(SendBuffer parent) {
+        for (int i = 0; i < NR_OF_BUFFERS; i++) {
+            ByteBuffer source = parent.byteBuffers[i];
+            byteBuffers[i].limit(source.limit());
+            byteBuffers[i].position(source.position());
         }
     }
 
@@ -69,18 +69,21 @@ final class ThreadNioAccumulator extends NioAccumulator {
             }
 
             SendBuffer[] copies = SendBuffer.replicate(buffer, nrOfConnections);
+            int copy = 0;
 
             for (int i = 0; i < nrOfConnections; i++) {
                 ThreadNioAccumulatorConnection connection;
                 connection = (ThreadNioAccumulatorConnection) connections[i];
 
+                // every connection tried gets a copy of its own
+                SendBuffer current = copies[copy++];
                 try {
-                    connection.addToThreadSendList(copies[i]);
+                    connection.addToThreadSendList(current);
                 } catch (IOException e) {
                     if (logger.isInfoEnabled()) {
                         logger.info("connection lost");
                     }
-                    SendBuffer.recycle(copies[i]);
+                    SendBuffer.recycle(current);
                     port.lostConnection(connection.target, e);
                     nrOfConnections--;
                     connections[i] = connections[nrOfConnections];
@@ -42,7 +42,8 @@ public final class SmartSocketsIbisStarter extends ibis.ipl.IbisStarter {
             PortType.CONNECTION_LIGHT, PortType.CONNECTION_ULTRALIGHT,
             PortType.CONNECTION_DIRECT, PortType.RECEIVE_POLL,
             PortType.RECEIVE_AUTO_UPCALLS, PortType.RECEIVE_EXPLICIT,
-            PortType.RECEIVE_POLL_UPCALLS, PortType.RECEIVE_TIMEOUT);
+            PortType.RECEIVE_POLL_UPCALLS, PortType.RECEIVE_TIMEOUT,
+            PortType.RECEIVE_CONCURRENT_UPCALLS);
 
     public SmartSocketsIbisStarter(String nickName, String iplVersion,
             String implementationVersion) {
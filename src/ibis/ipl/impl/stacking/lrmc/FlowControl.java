@@ -0,0 +1,408 @@
+package ibis.ipl.impl.stacking.lrmc;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Credit-based flow control between the hops of a multicast. A node only
+ * sends a packet to a next hop if it holds a credit of that hop. Each node
+ * lends out at most "limit" credits, shared by all nodes that send packets to
+ * it, and at most "window" of them to a single node. A credit comes back to
+ * the node that lent it once the packet sent with it has been forwarded, and
+ * read by the application if it was delivered there, so the number of packets
+ * a node buffers never exceeds its limit, and a slow hop or a slow reader
+ * slows down the nodes before it in the chain or tree.
+ *
+ * A node asks for credits when it has none, and returns credits it does not
+ * use when asked to, so that the credits of a node are divided over the nodes
+ * that actually send to it. Credits are returned in batches of half the share
+ * of a node. All control messages are sent by a separate thread, which gets
+ * them from {@link #nextAction(long)}.
+ */
+final class FlowControl {
+
+    /** Action: grant credits to a previous hop. */
+    static final int GRANT = 0;
+
+    /** Action: ask a next hop for credits; count 1 if we forgot its credits. */
+    static final int REQUEST = 1;
+
+    /** Action: ask a previous hop to return the credits it does not use. */
+    static final int REVOKE = 2;
+
+    /** Action: return unused credits to a next hop. */
+    static final int RETURN = 3;
+
+    /** Action: nothing happened for a while, check for dead previous hops. */
+    static final int CHECK = 4;
+
+    // credits we hold of a next hop
+    private static final class Downstream {
+        int available = 0;
+
+        boolean requested = false;
+    }
+
+    // credits we lent to a previous hop
+    private static final class Upstream {
+        // lent, including credits used for packets not forwarded yet
+        int credits = 0;
+
+        // packets received from the hop that are not forwarded yet
+        int held = 0;
+
+        // credits freed for the hop, but not granted yet
+        int pending = 0;
+
+        // set when the hop asked for credits
+        boolean waiting = false;
+
+        // set when the hop was asked to return its unused credits
+        boolean revoked = false;
+    }
+
+    private final int window;
+
+    private final int limit;
+
+    // credits not lent to any previous hop
+    private int free;
+
+    private final HashMap<Integer, Downstream> downstream = new HashMap<Integer, Downstream>();
+
+    private final HashMap<Integer, Upstream> upstream = new HashMap<Integer, Upstream>();
+
+    // next hops whose credits we dropped, reported with the next request
+    private final HashSet<Integer> forgotten = new HashSet<Integer>();
+
+    private final LinkedList<int[]> actions = new LinkedList<int[]>();
+
+    private boolean finish = false;
+
+    private long stalls = 0;
+
+    private long stallTime = 0;
+
+    /**
+     * @param window
+     *            number of credits lent to a single previous hop, at least 1.
+     * @param limit
+     *            number of credits lent to all previous hops together, at
+     *            least 1.
+     */
+    FlowControl(int window, int limit) {
+        this.window = window;
+        this.limit = limit;
+        this.free = limit;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Takes a credit for sending a packet to the given hop, asking the hop
+     * for credits and waiting at most the given time (in milliseconds) for
+     * them if there are none.
+     *
+     * @return false if no credit was available in time, or we are done.
+     */
+    synchronized boolean acquire(int hop, long timeout) {
+        Downstream d = getDownstream(hop);
+
+        if (d.available == 0) {
+            long start = System.currentTimeMillis();
+            long deadline = start + timeout;
+            long now = start;
+
+            stalls++;
+            while (d.available == 0 && !finish && now < deadline) {
+                if (!d.requested) {
+                    d.requested = true;
+                    addAction(REQUEST, hop, forgotten.remove(hop) ? 1 : 0);
+                }
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+                d = getDownstream(hop);
+                now = System.currentTimeMillis();
+            }
+            stallTime += now - start;
+
+            if (d.available == 0 || finish) {
+                // ask again next time, the request may have been lost
+                d.requested = false;
+                return false;
+            }
+        }
+
+        d.available--;
+        return true;
+    }
+
+    /**
+     * Adds credits granted by the given next hop.
+     */
+    synchronized void granted(int hop, int credits) {
+        Downstream d = getDownstream(hop);
+        d.available += credits;
+        d.requested = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns the credits of the given next hop we do not use, because it
+     * asked for them.
+     */
+    synchronized void revoked(int hop) {
+        Downstream d = downstream.get(hop);
+        if (d != null && d.available > 0) {
+            addAction(RETURN, hop, d.available);
+            d.available = 0;
+        }
+    }
+
+    /**
+     * Forgets the credits of the given next hop, because it is gone, or our
+     * connection to it failed and credits may have been lost.
+     */
+    synchronized void reset(int hop) {
+        downstream.remove(hop);
+        forgotten.add(hop);
+        notifyAll();
+    }
+
+    /**
+     * Notes that the given previous hop has no credits left and wants more.
+     *
+     * @param forgot
+     *            set when the hop forgot the credits it had.
+     */
+    synchronized void requested(int hop, boolean forgot) {
+        Upstream u = getUpstream(hop);
+        if (forgot) {
+            free += u.credits - u.held;
+            u.credits = u.held;
+            u.pending = 0;
+        }
+        u.waiting = true;
+        u.revoked = false;
+        distribute(null);
+
+        if (u.waiting && free == 0) {
+            // Take credits back from nodes that have more than their share.
+            // First the ones we did not grant yet, then the ones they hold.
+            int share = share();
+            for (Map.Entry<Integer, Upstream> entry : upstream.entrySet()) {
+                Upstream v = entry.getValue();
+                if (v == u || v.credits <= share) {
+                    continue;
+                }
+                int n = Math.min(v.pending, v.credits - share);
+                v.pending -= n;
+                v.credits -= n;
+                free += n;
+                if (v.credits > share && v.credits > v.held + v.pending
+                        && !v.revoked) {
+                    v.revoked = true;
+                    addAction(REVOKE, entry.getKey(), 0);
+                }
+            }
+            distribute(null);
+        }
+    }
+
+    /**
+     * Takes back unused credits returned by the given previous hop.
+     */
+    synchronized void returned(int hop, int credits) {
+        Upstream u = upstream.get(hop);
+        if (u == null) {
+            return;
+        }
+        credits = Math.min(credits, u.credits - u.held - u.pending);
+        u.credits -= credits;
+        u.revoked = false;
+        free += credits;
+        distribute(null);
+    }
+
+    /**
+     * Notes that a packet arrived from the given previous hop.
+     */
+    synchronized void received(int hop) {
+        Upstream u = getUpstream(hop);
+        u.held++;
+        if (u.held + u.pending > u.credits) {
+            // sent without our credit, because we forgot about the hop
+            u.credits++;
+            free--;
+        }
+    }
+
+    /**
+     * Notes that we are done with a packet received from the given previous
+     * hop: it has been forwarded and read, or dropped.
+     */
+    synchronized void done(int hop) {
+        Upstream u = upstream.get(hop);
+        if (u == null) {
+            // a packet of a hop we forgot about
+            free++;
+        } else if (u.held > 0) {
+            u.held--;
+            u.credits--;
+            free++;
+        }
+        distribute(u);
+    }
+
+    /**
+     * Forgets the credits lent to the given previous hop, because it died.
+     */
+    synchronized void forget(int hop) {
+        Upstream u = upstream.remove(hop);
+        if (u != null) {
+            // the packets it sent free their credits once forwarded
+            free += u.credits - u.held;
+            distribute(null);
+        }
+    }
+
+    /**
+     * Returns the previous hops we lent credits to.
+     */
+    synchronized int[] getUpstream() {
+        int[] result = new int[upstream.size()];
+        int i = 0;
+        for (Integer hop : upstream.keySet()) {
+            result[i++] = hop.intValue();
+        }
+        return result;
+    }
+
+    /**
+     * Waits until a control message should be sent, for at most the given
+     * time (in milliseconds).
+     *
+     * @return the action, the hop and the count, or null if we are done.
+     */
+    synchronized int[] nextAction(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!finish) {
+            if (actions.size() > 0) {
+                return actions.removeFirst();
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                return new int[] { CHECK, -1, 0 };
+            }
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+        return null;
+    }
+
+    synchronized void end() {
+        finish = true;
+        notifyAll();
+    }
+
+    /**
+     * Number of times a sender had to wait for credits.
+     */
+    synchronized long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Total time (in milliseconds) senders waited for credits.
+     */
+    synchronized long getStallTime() {
+        return stallTime;
+    }
+
+    private Downstream getDownstream(int hop) {
+        Downstream d = downstream.get(hop);
+        if (d == null) {
+            d = new Downstream();
+            downstream.put(hop, d);
+        }
+        return d;
+    }
+
+    private Upstream getUpstream(int hop) {
+        Upstream u = upstream.get(hop);
+        if (u == null) {
+            u = new Upstream();
+            upstream.put(hop, u);
+        }
+        return u;
+    }
+
+    private void addAction(int action, int hop, int count) {
+        actions.addLast(new int[] { action, hop, count });
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of credits a single previous hop may have: the
+     * limit divided over the hops that use credits, but at most the window.
+     */
+    private int share() {
+        int active = 0;
+        for (Upstream u : upstream.values()) {
+            if (u.credits > 0 || u.waiting) {
+                active++;
+            }
+        }
+        return Math.min(window, Math.max(limit / Math.max(active, 1), 1));
+    }
+
+    /**
+     * Lends free credits, first to the hops waiting for them, then to the
+     * given hop, which just had a packet forwarded. Grants them once a batch
+     * is complete, or right away if the hop is waiting and no more of its
+     * packets are queued here.
+     */
+    private void distribute(Upstream preferred) {
+        int share = share();
+
+        while (free > 0) {
+            Upstream target = null;
+            for (Upstream u : upstream.values()) {
+                if (u.waiting && u.credits < share
+                        && (target == null || u.credits < target.credits)) {
+                    target = u;
+                }
+            }
+            if (target == null && preferred != null
+                    && preferred.credits < share) {
+                target = preferred;
+            }
+            if (target == null) {
+                break;
+            }
+            target.credits++;
+            target.pending++;
+            free--;
+        }
+
+        int batch = Math.max(share / 2, 1);
+        for (Map.Entry<Integer, Upstream> entry : upstream.entrySet()) {
+            Upstream u = entry.getValue();
+            if (u.pending >= batch || (u.pending > 0 && u.waiting && u.held == 0)) {
+                addAction(GRANT, entry.getKey(), u.pending);
+                u.pending = 0;
+                u.waiting = false;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ibis.ipl.impl.stacking.lrmc;
 
+import ibis.ipl.IbisConfigurationException;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
@@ -13,17 +14,41 @@ import ibis.ipl.impl.stacking.lrmc.util.IbisSorter;
 import ibis.ipl.impl.stacking.lrmc.util.Message;
 import ibis.ipl.impl.stacking.lrmc.util.MessageCache;
 import ibis.ipl.impl.stacking.lrmc.util.MessageQueue;
+import ibis.ipl.impl.stacking.lrmc.util.TopologySorter;
+import ibis.ipl.support.vivaldi.Coordinates;
+import ibis.ipl.support.vivaldi.VivaldiClient;
+import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LabelRoutingMulticast extends Thread implements MessageUpcall {
+public class LabelRoutingMulticast extends Thread implements MessageUpcall,
+        MessageCache.Listener {
 
     private final static int ZOMBIE_THRESHOLD = 100000;
 
+    // how often coordinates are reported to a sender, and destinations are
+    // sorted again when coordinates change
+    private final static int COORDINATES_INTERVAL = VivaldiClient.PING_INTERVAL;
+
+    // how long a sender waits for credits before checking if the next hop
+    // died, and how often we check if the previous hops died
+    private final static int CREDIT_TIMEOUT = 10000;
+
+    /** Routing scheme: a single chain through all destinations. */
+    public static final String ROUTING_CHAIN = "chain";
+
+    /** Routing scheme: a number of chains, started in parallel. */
+    public static final String ROUTING_CHAINS = "chains";
+
+    /** Routing scheme: a pipelined binomial tree. */
+    public static final String ROUTING_TREE = "tree";
+
     private static final Logger logger = LoggerFactory
             .getLogger(LabelRoutingMulticast.class);
 
@@ -39,24 +64,108 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
 
     private final DynamicObjectArray<SendPort> sendports = new DynamicObjectArray<SendPort>();
     private final DynamicObjectArray<Long> diedmachines = new DynamicObjectArray<Long>();
+    private final DynamicObjectArray<Long> coordinatesSent = new DynamicObjectArray<Long>();
+
+    /**
+     * The destinations of a route, or the part of it a single hop forwards.
+     */
+    private static final class Route {
+        final int id;
+
+        final int[] destinations;
+
+        Route(int id, int[] destinations, int from, int to) {
+            this.id = id;
+            this.destinations = new int[to - from];
+            System.arraycopy(destinations, from, this.destinations, 0, to
+                    - from);
+        }
+
+        boolean matches(int id, int[] destinations, int from, int to) {
+            if (id != this.id || to - from != this.destinations.length) {
+                return false;
+            }
+            for (int i = from; i < to; i++) {
+                if (destinations[i] != this.destinations[i - from]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // last route received from each previous hop, for each sender
+    private final HashMap<Long, Route> receivedRoutes = new HashMap<Long, Route>();
+
+    // last route sent to each next hop, for each sender
+    private final HashMap<Long, Route> sentRoutes = new HashMap<Long, Route>();
+
+    // identifies the current destinations of messages sent from here
+    private int routeID = 0;
 
     private boolean finish = false;
 
     private int[] destinations = null;
 
+    // sort destinations by location and Vivaldi coordinates?
+    private final boolean topologySort;
+
+    // version of the coordinates used when sorting the destinations
+    private int sortedVersion = -1;
+
+    private long sortTime = 0;
+
     private long bytes = 0;
 
     private MessageQueue sendQueue;
 
+    // null if flow control is disabled
+    private final FlowControl flowControl;
+
+    // routing scheme of messages sent from here
+    private volatile String routing = ROUTING_CHAIN;
+
+    // number of chains used by the "chains" routing scheme
+    private volatile int chains = 4;
+
     public LabelRoutingMulticast(LrmcIbis ibis, MessageReceiver m,
             MessageCache c, String name) throws IOException {
         this.ibis = ibis;
         this.receiver = m;
         this.name = name;
         this.cache = c;
-        this.sendQueue = new MessageQueue(
-                new TypedProperties(ibis.properties()).getIntProperty(
-                        "lrmc.queueSize", 256));
+        TypedProperties properties = new TypedProperties(ibis.properties());
+        int queueSize = properties.getIntProperty("lrmc.queueSize", 256);
+        setRouting(properties);
+        this.topologySort = properties.getBooleanProperty("lrmc.topologySort",
+                true);
+
+        // number of packets a single previous hop may have buffered here, 0
+        // for no flow control
+        int window = properties.getIntProperty("lrmc.window", 256);
+        if (window < 0) {
+            throw new IbisConfigurationException("lrmc.window must be at "
+                    + "least 0, not " + window);
+        }
+        if (window > 0) {
+            if (queueSize < 1) {
+                throw new IbisConfigurationException("lrmc.queueSize must be "
+                        + "at least 1, not " + queueSize);
+            }
+            // A credit comes back once its packet is forwarded, and read by
+            // the application if it is delivered here, so the credits lent to
+            // the previous hops bound all packets buffered here. The queue
+            // has room for all of them, and for the packets a previous hop we
+            // forgot about may still send, so the upcall never has to wait
+            // for room in it. It could not read any credits while waiting.
+            flowControl = new FlowControl(window, queueSize);
+            this.sendQueue = new MessageQueue(queueSize + window);
+            cache.setListener(this);
+            ThreadPool.createNew(new CreditSender(), "LRMC credits:" + name);
+        } else {
+            flowControl = null;
+            this.sendQueue = new MessageQueue(queueSize);
+        }
         receive = ibis.base.createReceivePort(LrmcIbis.additionalPortType, "LRMCRing-"
                 + name, this);
         receive.enableConnections();
@@ -151,10 +260,36 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
         return sp;
     }
 
+    /**
+     * Sets the routing scheme of messages sent from here, from the
+     * "lrmc.routing" (chain, chains or tree) and "lrmc.chains" properties.
+     * Schemes not set in the given properties are left unchanged.
+     */
+    void setRouting(TypedProperties properties) {
+        String routing = properties.getProperty("lrmc.routing", this.routing);
+        int chains = properties.getIntProperty("lrmc.chains", this.chains);
+
+        if (!routing.equals(ROUTING_CHAIN) && !routing.equals(ROUTING_CHAINS)
+                && !routing.equals(ROUTING_TREE)) {
+            throw new IbisConfigurationException("unknown lrmc routing "
+                    + "scheme: " + routing);
+        }
+        if (chains < 1) {
+            throw new IbisConfigurationException("lrmc.chains must be at "
+                    + "least 1, not " + chains);
+        }
+        this.routing = routing;
+        this.chains = chains;
+
+        logger.debug("routing scheme " + routing + ", chains " + chains);
+    }
+
     private void internalSend(Message m) {
         SendPort sp = null;
         if (m.destinationsUsed == 0) {
-            if (m.last) {
+            // Only the end of a chain reports back. A tree has many leaves,
+            // and the sender does not use the DONE messages anyway.
+            if (m.last && m.route == Message.ROUTE_CHAIN) {
                 sp = getSendPort(m.sender);
                 if (sp != null) {
                     if (logger.isDebugEnabled()) {
@@ -177,9 +312,36 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             return;
         }
 
+        if (m.route == Message.ROUTE_TREE) {
+            // Binomial tree: the first child gets half of the destinations to
+            // forward to, the next child half of the rest, etc. The largest
+            // subtree is started first, so it finishes about when the others
+            // do.
+            int from = 0;
+            while (from < m.destinationsUsed) {
+                int to = from + (m.destinationsUsed - from + 1) / 2;
+                if (!sendRange(m, from, to)) {
+                    return;
+                }
+                from = to;
+            }
+        } else {
+            sendRange(m, 0, m.destinationsUsed);
+        }
+    }
+
+    /**
+     * Sends a message to the first working destination in the given range,
+     * which forwards it to the rest of the range.
+     * 
+     * @return false if we are done, and should stop sending.
+     */
+    private boolean sendRange(Message m, int from, int to) {
+        SendPort sp = null;
+
         // Get the next target from the destination array. If this fails, get
         // the next one, etc. If no working destination is found we give up.
-        int index = 0;
+        int index = from;
         int id = -1;
 
         do {
@@ -188,36 +350,194 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             if (sp == null) {
                 synchronized (this) {
                     if (finish) {
-                        return;
+                        return false;
                     }
                 }
             }
-        } while (sp == null && index < m.destinationsUsed);
+        } while (sp == null && index < to);
 
         try {
             if (sp == null) {
                 // No working destinations where found, so give up!
                 logger.info("No working destinations found, giving up!");
-                return;
+                return true;
             }
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Writing message " + m.id + "/" + m.num + " to "
                         + id + ", sender " + m.sender
-                        + ", destinations left = "
-                        + (m.destinationsUsed - index));
+                        + ", destinations left = " + (to - index));
+            }
+
+            if (flowControl != null && !waitForCredit(id)) {
+                return false;
             }
 
             // send the message to the target
+            boolean cached = routeSent(id, m, index, to);
             WriteMessage wm = sp.newMessage();
-            m.write(wm, index);
+            m.write(wm, index, to, cached);
             bytes += wm.finish();
         } catch (IOException e) {
             logger.info("Write to " + id + " failed! ", e);
             sendports.remove(id);
+            synchronized (this) {
+                sentRoutes.remove(routeKey(id, m.sender));
+            }
+            if (flowControl != null) {
+                flowControl.reset(id);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until we may send another packet to the given next hop.
+     * 
+     * @return false if we are done, and should stop sending.
+     */
+    private boolean waitForCredit(int hop) {
+        while (!flowControl.acquire(hop, CREDIT_TIMEOUT)) {
+            synchronized (this) {
+                if (finish) {
+                    return false;
+                }
+            }
+            if (ibis.hasDied(hop)) {
+                // its credits will never come back
+                logger.info("Next hop " + hop + " died, dropping its credits");
+                flowControl.reset(hop);
+            } else {
+                logger.debug("Still waiting for credits from " + hop);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the control messages of the flow control: grants and requests
+     * for credits, and unused credits asked back or returned. Also forgets
+     * the credits lent to previous hops that died.
+     */
+    private final class CreditSender implements Runnable {
+        public void run() {
+            while (true) {
+                int[] action = flowControl.nextAction(CREDIT_TIMEOUT);
+                if (action == null) {
+                    return;
+                }
+                switch (action[0]) {
+                case FlowControl.GRANT:
+                    sendCredits(-3, action[1], action[2]);
+                    break;
+                case FlowControl.REQUEST:
+                    sendCredits(-4, action[1], action[2]);
+                    break;
+                case FlowControl.REVOKE:
+                    sendCredits(-5, action[1], action[2]);
+                    break;
+                case FlowControl.RETURN:
+                    sendCredits(-6, action[1], action[2]);
+                    break;
+                default:
+                    int[] hops = flowControl.getUpstream();
+                    for (int i = 0; i < hops.length; i++) {
+                        if (ibis.hasDied(hops[i])) {
+                            logger.info("Previous hop " + hops[i]
+                                    + " died, taking back its credits");
+                            flowControl.forget(hops[i]);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void sendCredits(int type, int hop, int count) {
+        SendPort sp = getSendPort(hop);
+        if (sp == null) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending credit message " + type + " (" + count
+                    + ") to " + hop);
+        }
+        try {
+            WriteMessage wm = sp.newMessage();
+            wm.writeInt(type);
+            wm.writeInt(ibis.myID);
+            wm.writeInt(count);
+            wm.finish();
+        } catch (IOException e) {
+            logger.debug("Sending credit message to " + hop + " failed", e);
         }
     }
 
+    /**
+     * Number of times a sender had to wait for credits of a next hop.
+     */
+    public long getStalls() {
+        return flowControl == null ? 0 : flowControl.getStalls();
+    }
+
+    /**
+     * Total time (in milliseconds) senders waited for credits.
+     */
+    public long getStallTime() {
+        return flowControl == null ? 0 : flowControl.getStallTime();
+    }
+
+    private static long routeKey(int hop, int sender) {
+        return ((long) hop << 32) | (sender & 0xffffffffL);
+    }
+
+    /**
+     * Returns true if the next hop already has the given part of the route of
+     * a message, so it does not have to be sent again. Otherwise, remembers
+     * that the next hop will have it after this message.
+     */
+    private synchronized boolean routeSent(int hop, Message m, int from,
+            int to) {
+        if (from == to) {
+            // nothing to send anyway
+            return false;
+        }
+
+        long key = routeKey(hop, m.sender);
+        Route last = sentRoutes.get(key);
+        if (last != null && last.matches(m.routeID, m.destinations, from, to)) {
+            return true;
+        }
+        sentRoutes.put(key, new Route(m.routeID, m.destinations, from, to));
+        return false;
+    }
+
+    /**
+     * Fills in the destinations of a message which arrived without them, from
+     * the last route of its sender received from the same previous hop. When
+     * the route of a sender changes, packets sent along the old route may
+     * still arrive from the old previous hop, so the routes of different
+     * hops must be kept apart.
+     * 
+     * @return false if that route is not the route of the message.
+     */
+    private synchronized boolean fillRoute(Message m) {
+        Route route = receivedRoutes.get(routeKey(m.hop, m.sender));
+        if (route == null || route.id != m.routeID) {
+            return false;
+        }
+
+        if (m.destinations == null
+                || m.destinations.length < route.destinations.length) {
+            m.destinations = new int[route.destinations.length];
+        }
+        System.arraycopy(route.destinations, 0, m.destinations, 0,
+                route.destinations.length);
+        m.destinationsUsed = route.destinations.length;
+        return true;
+    }
+
     public void setDestination(IbisIdentifier[] destinations) {
 
         logger.debug("setDestination called, destinations.length = "
@@ -225,15 +545,80 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
 
         // We are allowed to change the order of machines in the destination
         // array. This can be used to make the mcast 'cluster aware'.
-        IbisSorter.sort(ibis.identifier(), destinations);
+        if (topologySort) {
+            synchronized (this) {
+                sortedVersion = ibis.getCoordinatesVersion();
+                sortTime = System.currentTimeMillis();
+            }
+            TopologySorter.sort(ibis.identifier(), ibis.getOwnCoordinates(),
+                    destinations, ibis.getCoordinates(destinations));
+        } else {
+            IbisSorter.sort(ibis.identifier(), destinations);
+        }
 
-        this.destinations = new int[destinations.length];
+        int[] result = new int[destinations.length];
 
         for (int i = 0; i < destinations.length; i++) {
-            this.destinations[i] = ibis.getIbisID(destinations[i]);
+            result[i] = ibis.getIbisID(destinations[i]);
             logger.debug("  " + i + " (" + destinations[i] + " at "
                     + destinations[i].location().getParent() + ") -> "
-                    + this.destinations[i]);
+                    + result[i]);
+        }
+
+        // A new route makes every next hop get the destinations again, so
+        // only install it if it differs from the current one.
+        if (!Arrays.equals(result, this.destinations)) {
+            this.destinations = result;
+            routeID++;
+        }
+    }
+
+    /**
+     * Returns true if the destinations should be sorted again, because the
+     * coordinates of some ibis changed since they were last sorted. Sorting
+     * changes the routes of messages, so it is done at most once every
+     * COORDINATES_INTERVAL.
+     */
+    synchronized boolean topologyChanged() {
+        return topologySort
+                && sortedVersion != ibis.getCoordinatesVersion()
+                && System.currentTimeMillis() - sortTime >= COORDINATES_INTERVAL;
+    }
+
+    /**
+     * Reports our coordinates to the sender of a multicast, so it can take
+     * them into account when sorting its destinations. Done at most once
+     * every COORDINATES_INTERVAL per sender.
+     */
+    private void sendCoordinates(int id) {
+        Coordinates c = ibis.getOwnCoordinates();
+        if (c == null || c.isOrigin() || id == ibis.myID) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Long last = coordinatesSent.get(id);
+            if (last != null && now - last.longValue() < COORDINATES_INTERVAL) {
+                return;
+            }
+            coordinatesSent.put(id, new Long(now));
+        }
+
+        SendPort sp = getSendPort(id);
+        if (sp == null) {
+            return;
+        }
+        try {
+            byte[] bytes = c.toBytes();
+            WriteMessage wm = sp.newMessage();
+            wm.writeInt(-2);
+            wm.writeInt(ibis.myID);
+            wm.writeInt(bytes.length);
+            wm.writeArray(bytes);
+            wm.finish();
+        } catch (IOException e) {
+            logger.debug("Writing coordinates to " + id + " failed", e);
         }
     }
 
@@ -256,8 +641,28 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
         m.destinationsUsed = destinations.length;
         m.sender = ibis.myID;
         m.local = true;
-
-        internalSend(m);
+        m.routeID = routeID;
+
+        String routing = this.routing;
+        if (routing.equals(ROUTING_TREE)) {
+            m.route = Message.ROUTE_TREE;
+            internalSend(m);
+        } else if (routing.equals(ROUTING_CHAINS) && destinations.length > 0) {
+            // Start each chain on a consecutive part of the (sorted)
+            // destinations, so the chains stay within clusters if possible.
+            m.route = Message.ROUTE_CHAIN;
+            int chains = Math.min(this.chains, destinations.length);
+            for (int i = 0; i < chains; i++) {
+                int from = i * destinations.length / chains;
+                int to = (i + 1) * destinations.length / chains;
+                if (!sendRange(m, from, to)) {
+                    break;
+                }
+            }
+        } else {
+            m.route = Message.ROUTE_CHAIN;
+            internalSend(m);
+        }
 
         m.destinations = destOld;
         return true;
@@ -274,6 +679,10 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
 
             try {
                 internalSend(m);
+                if (topologySort && m.num == 0) {
+                    // first packet of a multicast
+                    sendCoordinates(m.sender);
+                }
             } catch (Exception e) {
                 logger.info("Sender thread got exception! ", e);
             } finally {
@@ -288,6 +697,14 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             finish = true;
         }
         sendQueue.terminate();
+        if (flowControl != null) {
+            flowControl.end();
+            if (flowControl.getStalls() > 0) {
+                logger.info("Waited for credits " + flowControl.getStalls()
+                        + " times, " + flowControl.getStallTime()
+                        + " ms in total");
+            }
+        }
         try {
             join(10000);
         } catch (Exception e) {
@@ -312,6 +729,15 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
         }
     }
 
+    /**
+     * Called by the message cache when a packet received from the given
+     * previous hop has been forwarded, and read by the application if it was
+     * delivered here, or when it was dropped. Its credit can go back.
+     */
+    public void released(int hop) {
+        flowControl.done(hop);
+    }
+
     public void upcall(ReadMessage rm) throws IOException {
 
         Message message = null;
@@ -327,12 +753,70 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                 receiver.gotDone(id);
                 return;
             }
+            if (len == -2) {
+                // coordinates of another ibis
+                int id = rm.readInt();
+                byte[] bytes = new byte[rm.readInt()];
+                rm.readArray(bytes);
+                ibis.setCoordinates(id, new Coordinates(bytes));
+                return;
+            }
+            if (len <= -3) {
+                // flow control: credits granted by a next hop (-3), a request
+                // for credits (-4), credits asked back by a next hop (-5), or
+                // unused credits returned (-6)
+                int id = rm.readInt();
+                int count = rm.readInt();
+                if (flowControl == null) {
+                    return;
+                }
+                switch (len) {
+                case -3:
+                    flowControl.granted(id, count);
+                    break;
+                case -4:
+                    flowControl.requested(id, count != 0);
+                    break;
+                case -5:
+                    flowControl.revoked(id);
+                    break;
+                default:
+                    flowControl.returned(id, count);
+                    break;
+                }
+                return;
+            }
 
             int dst = rm.readInt();
 
+            int hop = ibis.getIbisID(rm.origin().ibisIdentifier());
             message = cache.get(len);
+            if (flowControl != null) {
+                // its credit goes back to where it came from once the cache
+                // releases it
+                flowControl.received(hop);
+            }
+            message.hop = hop;
             message.read(rm, len, dst);
 
+            if (dst == Message.CACHED_ROUTE) {
+                if (!fillRoute(message)) {
+                    // the packet with the route got lost, or the route
+                    // changed in the mean time
+                    logger.info("Dropping message " + message.id + "/"
+                            + message.num + " from " + message.sender
+                            + ": unknown route " + message.routeID);
+                    cache.put(message);
+                    return;
+                }
+            } else if (dst > 0) {
+                synchronized (this) {
+                    receivedRoutes.put(routeKey(message.hop, message.sender),
+                            new Route(message.routeID, message.destinations,
+                                    0, dst));
+                }
+            }
+
             if (logger.isDebugEnabled()) {
                 logger.debug("Reading message " + message.id + "/"
                         + message.num + " from " + message.sender);
@@ -350,6 +834,7 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             // Is this OK? sendQueue may block (is not allowed in upcall)!
             // However, calling finish() here may change the message order,
             // so we cannot do that. (Ceriel).
+            // With flow control, the credits keep the queue from filling up.
             sendQueue.enqueue(message);
 
         } catch (IOException e) {
@@ -17,6 +17,7 @@ import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.SendPort;
 import ibis.ipl.SendPortDisconnectUpcall;
 import ibis.ipl.impl.stacking.lrmc.util.DynamicObjectArray;
+import ibis.ipl.support.vivaldi.Coordinates;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -113,6 +114,16 @@ public class LrmcIbis implements Ibis {
 
     HashMap<String, Multicaster> multicasters = new HashMap<String, Multicaster>();
 
+    // Vivaldi coordinates of other ibises, as reported by themselves
+    private DynamicObjectArray<Coordinates> coordinates = new DynamicObjectArray<Coordinates>();
+
+    // incremented whenever the coordinates of some ibis change
+    private int coordinatesVersion = 0;
+
+    // how far (relative to its distance from us) an ibis must move before
+    // its coordinates count as changed
+    private static final double COORDINATES_TOLERANCE = 0.1;
+
     public LrmcIbis(IbisFactory factory,
             RegistryEventHandler registryEventHandler,
             Properties userProperties, IbisCapabilities capabilities,
@@ -188,6 +199,10 @@ public class LrmcIbis implements Ibis {
         return ibisID;
     }
 
+    synchronized boolean hasDied(int id) {
+        return diedIbises.get(id);
+    }
+
     synchronized int getIbisID(IbisIdentifier ibis) {
 
         Integer s = knownIbis.get(ibis);
@@ -207,10 +222,68 @@ public class LrmcIbis implements Ibis {
         if (tmp != null) {
             logger.info("Removing ibis " + tmp.intValue() + " " + ibis);
             ibisList.remove(tmp.intValue());
+            coordinates.remove(tmp.intValue());
         }
         diedIbises.set(tmp.intValue());
     }
 
+    /**
+     * Sets the coordinates reported by the given ibis. They only replace the
+     * known coordinates if the ibis moved more than a tenth of its distance
+     * from us, so that the destinations are not sorted again on every report.
+     */
+    void setCoordinates(int id, Coordinates c) {
+        Coordinates own = getOwnCoordinates();
+
+        synchronized (this) {
+            Coordinates old = coordinates.get(id);
+            if (old != null && own != null
+                    && old.distance(c) <= COORDINATES_TOLERANCE
+                            * own.distance(old)) {
+                return;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Coordinates of ibis " + id + " now " + c);
+            }
+            coordinates.put(id, c);
+            coordinatesVersion++;
+        }
+    }
+
+    /**
+     * Returns the known coordinates of the given ibises.
+     */
+    synchronized Map<IbisIdentifier, Coordinates> getCoordinates(
+            IbisIdentifier[] ibises) {
+        HashMap<IbisIdentifier, Coordinates> result = new HashMap<IbisIdentifier, Coordinates>();
+
+        for (IbisIdentifier ibis : ibises) {
+            Integer id = knownIbis.get(ibis);
+            if (id != null) {
+                Coordinates c = coordinates.get(id.intValue());
+                if (c != null) {
+                    result.put(ibis, c);
+                }
+            }
+        }
+        return result;
+    }
+
+    synchronized int getCoordinatesVersion() {
+        return coordinatesVersion;
+    }
+
+    /**
+     * Returns the Vivaldi coordinates of this ibis, or null if the underlying
+     * ibis does not compute them.
+     */
+    Coordinates getOwnCoordinates() {
+        if (base instanceof ibis.ipl.impl.Ibis) {
+            return ((ibis.ipl.impl.Ibis) base).getVivaldiCoordinates();
+        }
+        return null;
+    }
+
     synchronized Multicaster getMulticaster(String name, PortType portType)
             throws IOException {
         Multicaster om = multicasters.get(name);
@@ -344,12 +417,37 @@ public class LrmcIbis implements Ibis {
         return base.registry();
     }
 
+    /**
+     * Returns the flow control statistics of the multicasters, as
+     * "lrmc.&lt;name&gt;.stalls" (number of times a sender waited for credits)
+     * and "lrmc.&lt;name&gt;.stallTime" (total time waited, in milliseconds).
+     */
+    private synchronized Map<String, String> lrmcProperties() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        for (Map.Entry<String, Multicaster> x : multicasters.entrySet()) {
+            LabelRoutingMulticast lrmc = x.getValue().lrmc;
+            result.put("lrmc." + x.getKey() + ".stalls", ""
+                    + lrmc.getStalls());
+            result.put("lrmc." + x.getKey() + ".stallTime", ""
+                    + lrmc.getStallTime());
+        }
+        return result;
+    }
+
     public Map<String, String> managementProperties() {
-        return base.managementProperties();
+        Map<String, String> result = new HashMap<String, String>(base
+                .managementProperties());
+        result.putAll(lrmcProperties());
+        return result;
     }
 
     public String getManagementProperty(String key)
             throws NoSuchPropertyException {
+        String result = lrmcProperties().get(key);
+        if (result != null) {
+            return result;
+        }
         return base.getManagementProperty(key);
     }
 
@@ -365,6 +463,14 @@ public class LrmcIbis implements Ibis {
 
     public void printManagementProperties(PrintStream stream) {
         base.printManagementProperties(stream);
+
+        synchronized (this) {
+            for (Map.Entry<String, Multicaster> x : multicasters.entrySet()) {
+                LabelRoutingMulticast lrmc = x.getValue().lrmc;
+                stream.format("LRMC %s waited for credits: %d times, %d ms\n",
+                        x.getKey(), lrmc.getStalls(), lrmc.getStallTime());
+            }
+        }
     }
 
     public void poll() throws IOException {
@@ -10,6 +10,7 @@ import ibis.ipl.ReceivePortIdentifier;
 import ibis.ipl.SendPort;
 import ibis.ipl.SendPortIdentifier;
 import ibis.ipl.WriteMessage;
+import ibis.util.TypedProperties;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -32,6 +33,9 @@ public class LrmcSendPort implements SendPort {
     public LrmcSendPort(Multicaster om, LrmcIbis ibis, Properties props) {
         this.om = om;
         identifier = new LrmcSendPortIdentifier(ibis.identifier(), om.name);
+        if (props != null) {
+            om.lrmc.setRouting(new TypedProperties(props));
+        }
     }
 
     public synchronized void close() throws IOException {
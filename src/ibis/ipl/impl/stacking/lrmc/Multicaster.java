@@ -113,7 +113,7 @@ public class Multicaster implements MessageReceiver {
     }
 
     void initializeSend(IbisIdentifier[] destinations) throws IOException {
-        if (destination != destinations) {
+        if (destination != destinations || lrmc.topologyChanged()) {
             destination = destinations;
             lrmc.setDestination(destinations);
         }
@@ -9,6 +9,18 @@ public class Message {
 
     public static final int LAST_PACKET = 1 << 31;
 
+    /** Forward to the first destination, which forwards to the rest. */
+    public static final byte ROUTE_CHAIN = 0;
+
+    /** Forward along a binomial tree over the destinations. */
+    public static final byte ROUTE_TREE = 1;
+
+    /**
+     * Sent instead of the number of destinations if the receiver already has
+     * the destinations of this route from an earlier packet.
+     */
+    public static final int CACHED_ROUTE = -1;
+
     public int sender;
 
     public short refcount;
@@ -16,6 +28,11 @@ public class Message {
     public int[] destinations;
     public int destinationsUsed;
 
+    public byte route = ROUTE_CHAIN;
+
+    // identifies the destinations of the sender this message follows
+    public int routeID;
+
     public int id;
     public int num;
 
@@ -26,6 +43,9 @@ public class Message {
     public boolean last = false;
     public boolean local = false;
 
+    // node this message was received from, -1 if it was not received
+    public int hop = -1;
+
     public Message next;
 
     // private int useCount = 0;
@@ -44,6 +64,9 @@ public class Message {
         id = rm.readInt();
         num = rm.readInt();
 
+        route = rm.readByte();
+        routeID = rm.readInt();
+
         last = ((num & LAST_PACKET) != 0);
 
         if (last) {
@@ -63,16 +86,23 @@ public class Message {
             rm.readArray(destinations, 0, dst);
         }
 
-        destinationsUsed = dst;
+        // a cached route is filled in by the caller
+        destinationsUsed = Math.max(dst, 0);
     }
 
-    public void write(WriteMessage wm, int fromDest) throws IOException {
+    /**
+     * Writes this message, with the destinations from fromDest (inclusive)
+     * up to toDest (exclusive). If routeCached is set, the receiver already
+     * has these destinations, and only the route ID is written.
+     */
+    public void write(WriteMessage wm, int fromDest, int toDest,
+            boolean routeCached) throws IOException {
 
-        int destinationLength = destinationsUsed - fromDest;
+        int destinationLength = toDest - fromDest;
 
         // First write the two variable lengths present in the message.
         wm.writeInt(len);
-        wm.writeInt(destinationLength);
+        wm.writeInt(routeCached ? CACHED_ROUTE : destinationLength);
 
         // Then write the content that guaranteed to be there
         wm.writeInt(sender);
@@ -83,13 +113,15 @@ public class Message {
         } else {
             wm.writeInt(num);
         }
+        wm.writeByte(route);
+        wm.writeInt(routeID);
 
         // Finally write the actual data that has a variable size
         if (len > 0) {
             wm.writeArray(buffer, off, len);
         }
 
-        if (destinationLength > 0) {
+        if (destinationLength > 0 && !routeCached) {
             wm.writeArray(destinations, fromDest, destinationLength);
         }
     }
@@ -2,6 +2,14 @@ package ibis.ipl.impl.stacking.lrmc.util;
 
 public class MessageCache {
 
+    /**
+     * Told about every message received from another node, once it is no
+     * longer used.
+     */
+    public interface Listener {
+        void released(int hop);
+    }
+
     private final int MESSAGE_SIZE;
     private final int MAX_SIZE;
 
@@ -14,6 +22,8 @@ public class MessageCache {
     private long store = 0;
     private long discard = 0;
 
+    private Listener listener = null;
+
     public MessageCache(int cacheSize, int messageSize) {
         this.MAX_SIZE = cacheSize;
         this.MESSAGE_SIZE = messageSize;
@@ -35,9 +45,23 @@ public class MessageCache {
         }
     }
 
-    public synchronized void put(Message m) {
-        m.refcount--;
-        if (m.refcount == 0) {
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void put(Message m) {
+        int hop;
+        Listener listener;
+
+        synchronized (this) {
+            m.refcount--;
+            if (m.refcount != 0) {
+                return;
+            }
+            hop = m.hop;
+            listener = this.listener;
+            m.hop = -1;
+
             if (size < MAX_SIZE && m.buffer != null
                     && m.buffer.length == MESSAGE_SIZE) {
 
@@ -50,6 +74,11 @@ public class MessageCache {
                 discard++;
             }
         }
+
+        // outside the lock: the listener takes locks of its own
+        if (hop >= 0 && listener != null) {
+            listener.released(hop);
+        }
     }
 
     public Message get(int len) {
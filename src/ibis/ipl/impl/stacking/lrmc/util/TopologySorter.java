@@ -0,0 +1,190 @@
+package ibis.ipl.impl.stacking.lrmc.util;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Location;
+import ibis.ipl.support.vivaldi.Coordinates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Orders the destinations of a multicast so that the chains and trees built
+ * on them cross as few wide-area links as possible.
+ *
+ * Destinations are grouped by location, from the most general level down to
+ * the most specific one, so all destinations at the same site end up next to
+ * each other, within that all destinations in the same cluster, etc. The
+ * group of the sender comes first. The other groups are visited nearest
+ * first, measured from the last destination placed, using the Vivaldi
+ * coordinates of their members. Groups of which no coordinates are known
+ * follow in order of name, as do all groups if the sender does not know its
+ * own coordinates.
+ */
+public final class TopologySorter {
+
+    private static final Comparator<IbisIdentifier> byName = new Comparator<IbisIdentifier>() {
+        public int compare(IbisIdentifier id1, IbisIdentifier id2) {
+            return id1.name().compareTo(id2.name());
+        }
+    };
+
+    private final Map<IbisIdentifier, Coordinates> coordinates;
+
+    private final ArrayList<IbisIdentifier> result = new ArrayList<IbisIdentifier>();
+
+    // coordinates of the last destination placed, null if unknown
+    private Coordinates position;
+
+    private TopologySorter(Map<IbisIdentifier, Coordinates> coordinates,
+            Coordinates position) {
+        this.coordinates = coordinates;
+        this.position = position;
+    }
+
+    /**
+     * Sorts the given destinations of a multicast sent by the local Ibis.
+     *
+     * @param local
+     *            the sender.
+     * @param localCoordinates
+     *            coordinates of the sender, or null if unknown.
+     * @param ids
+     *            the destinations, sorted in place.
+     * @param coordinates
+     *            known coordinates of (some of) the destinations.
+     */
+    public static void sort(IbisIdentifier local, Coordinates localCoordinates,
+            IbisIdentifier[] ids, Map<IbisIdentifier, Coordinates> coordinates) {
+        TopologySorter sorter = new TopologySorter(coordinates,
+                localCoordinates);
+
+        sorter.order(local, Arrays.asList(ids), 0);
+        sorter.result.toArray(ids);
+    }
+
+    /**
+     * Places the given destinations, which all share the last "depth" levels
+     * of their location. If local is not null, it shares these levels as
+     * well, and its group goes first.
+     */
+    private void order(IbisIdentifier local, List<IbisIdentifier> ids,
+            int depth) {
+        ArrayList<IbisIdentifier> here = new ArrayList<IbisIdentifier>();
+        TreeMap<String, List<IbisIdentifier>> groups = new TreeMap<String, List<IbisIdentifier>>();
+
+        for (IbisIdentifier id : ids) {
+            String level = level(id.location(), depth);
+            if (level == null) {
+                // no more specific level
+                here.add(id);
+            } else {
+                List<IbisIdentifier> group = groups.get(level);
+                if (group == null) {
+                    group = new ArrayList<IbisIdentifier>();
+                    groups.put(level, group);
+                }
+                group.add(id);
+            }
+        }
+
+        Collections.sort(here, byName);
+        for (IbisIdentifier id : here) {
+            place(id);
+        }
+
+        if (local != null) {
+            String level = level(local.location(), depth);
+            if (level != null && groups.containsKey(level)) {
+                order(local, groups.remove(level), depth + 1);
+            }
+        }
+
+        while (!groups.isEmpty()) {
+            order(null, groups.remove(nearest(groups)), depth + 1);
+        }
+    }
+
+    /**
+     * Returns the level of the location below the last "depth" levels, or
+     * null if there is none.
+     */
+    private static String level(Location location, int depth) {
+        int level = location.numberOfLevels() - 1 - depth;
+        if (level < 0) {
+            return null;
+        }
+        return location.getLevel(level);
+    }
+
+    private void place(IbisIdentifier id) {
+        result.add(id);
+
+        Coordinates c = coordinates.get(id);
+        if (c != null) {
+            position = c;
+        }
+    }
+
+    /**
+     * Returns the name of the group closest to the current position, or the
+     * first group by name if no distances are known.
+     */
+    private String nearest(TreeMap<String, List<IbisIdentifier>> groups) {
+        String result = groups.firstKey();
+
+        if (position == null) {
+            return result;
+        }
+
+        double best = Double.MAX_VALUE;
+        for (Map.Entry<String, List<IbisIdentifier>> group : groups
+                .entrySet()) {
+            Coordinates centroid = centroid(group.getValue());
+            if (centroid != null) {
+                double distance = position.distance(centroid);
+                if (distance < best) {
+                    best = distance;
+                    result = group.getKey();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the average coordinates of the given destinations, or null if
+     * none of them are known.
+     */
+    private Coordinates centroid(List<IbisIdentifier> ids) {
+        double[] sum = null;
+        int count = 0;
+
+        for (IbisIdentifier id : ids) {
+            Coordinates c = coordinates.get(id);
+            if (c == null) {
+                continue;
+            }
+            double[] vector = c.getCoordinates();
+            if (sum == null) {
+                sum = new double[vector.length];
+            }
+            for (int i = 0; i < vector.length; i++) {
+                sum[i] += vector[i];
+            }
+            count++;
+        }
+
+        if (count == 0) {
+            return null;
+        }
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] /= count;
+        }
+        return new Coordinates(sum, 0);
+    }
+}
@@ -2,6 +2,7 @@ package ibis.ipl.impl.tcp;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 class IbisSocket {
 
@@ -19,6 +20,14 @@ class IbisSocket {
         return socket.getOutputStream();
     }
 
+    /**
+     * Returns the channel of this socket, or <code>null</code> if the
+     * socket was not created from a channel.
+     */
+    SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
     java.io.InputStream getInputStream() throws IOException {
         return socket.getInputStream();
     }
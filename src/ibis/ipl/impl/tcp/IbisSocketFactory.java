@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.Properties;
 
@@ -20,8 +22,16 @@ class IbisSocketFactory {
     private static final Logger logger = LoggerFactory
             .getLogger(IbisSocketFactory.class);
 
+    /** Whether client sockets are created from socket channels. */
+    private final boolean channels;
+
     IbisSocketFactory(TypedProperties properties)
             throws IbisConfigurationException, IOException {
+        channels = properties.getBooleanProperty(TcpIbis.s_channels, false);
+    }
+
+    boolean useChannels() {
+        return channels;
     }
 
     void setIdent(IbisIdentifier id) {
@@ -29,7 +39,13 @@ class IbisSocketFactory {
 
     IbisServerSocket createServerSocket(int port, int backlog, boolean retry,
             Properties properties) throws IOException {
-        ServerSocket server = new ServerSocket();
+        ServerSocket server;
+        if (channels) {
+            // Accepted sockets then have a channel too.
+            server = ServerSocketChannel.open().socket();
+        } else {
+            server = new ServerSocket();
+        }
         InetSocketAddress local = new InetSocketAddress(IPUtils
                 .getLocalHostAddress(), port);
         server.bind(local, backlog);
@@ -40,7 +56,12 @@ class IbisSocketFactory {
             boolean fillTimeout, Map<String, String> properties)
             throws IOException {
 
-        Socket s = new Socket();
+        Socket s;
+        if (channels) {
+            s = SocketChannel.open().socket();
+        } else {
+            s = new Socket();
+        }
 
         s.connect(addr.address, timeout);
         return new IbisSocket(s);
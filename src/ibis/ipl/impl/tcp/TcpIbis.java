@@ -41,6 +41,17 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
     static final Logger logger = LoggerFactory
             .getLogger("ibis.ipl.impl.tcp.TcpIbis");
 
+    static final String prefix = "ibis.ipl.impl.tcp.";
+
+    /**
+     * Boolean property: if true, send ports with at most one connection
+     * write through a socket channel with gathering writes, and receive
+     * ports read large byte buffers straight from the socket channel.
+     */
+    static final String s_channels = prefix + "channels";
+
+    static final String[] props = { s_channels };
+
     private IbisSocketFactory factory;
 
     private IbisServerSocket systemServer;
@@ -57,8 +68,7 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
         super(registryEventHandler, capabilities, credentials, applicationTag, types,
                 userProperties, starter);
 
-        this.properties.checkProperties("ibis.ipl.impl.tcp.",
-                new String[] { }, null, true);
+        this.properties.checkProperties(prefix, props, null, true);
 
         factory.setIdent(ident);
 
@@ -209,6 +219,10 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
         } while (true);
     }
 
+    boolean useChannels() {
+        return factory.useChannels();
+    }
+
     protected void quit() {
         try {
             quiting = true;
@@ -227,6 +241,10 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
 
         BufferedArrayInputStream bais = 
             new BufferedArrayInputStream(s.getInputStream());
+        if (s.getChannel() != null) {
+            // Lets large byte buffers be read straight from the channel.
+            bais.setChannel(s.getChannel());
+        }
 
         DataInputStream in = new DataInputStream(bais);
         OutputStream out = s.getOutputStream();
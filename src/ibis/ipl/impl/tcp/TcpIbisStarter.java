@@ -41,7 +41,8 @@ public final class TcpIbisStarter extends ibis.ipl.IbisStarter {
             PortType.CONNECTION_ONE_TO_MANY, PortType.CONNECTION_ONE_TO_ONE,
             PortType.RECEIVE_POLL, PortType.RECEIVE_AUTO_UPCALLS,
             PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_POLL_UPCALLS,
-            PortType.RECEIVE_TIMEOUT);
+            PortType.RECEIVE_TIMEOUT,
+            PortType.RECEIVE_CONCURRENT_UPCALLS);
 
     public TcpIbisStarter(String nickName, String iplVersion,
             String implementationVersion) {
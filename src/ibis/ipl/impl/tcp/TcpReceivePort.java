@@ -210,9 +210,21 @@ class TcpReceivePort extends ReceivePort implements TcpProtocol {
 
     TcpReceivePort(Ibis ibis, PortType type, String name, MessageUpcall upcall,
             ReceivePortConnectUpcall connUpcall, Properties props) throws IOException {
-        super(ibis, type, name, upcall, connUpcall, props);
+        super(ibis, type, name, upcall, connUpcall, props,
+                lazyConnectionHandlerThread(type, upcall, connUpcall));
 
-        lazy_connectionhandler_thread = upcall == null && connUpcall == null
+        lazy_connectionhandler_thread
+                = lazyConnectionHandlerThread(type, upcall, connUpcall);
+    }
+
+    /**
+     * Determines whether the connection handler threads are only started when
+     * a message is requested. In that case, messages are delivered while
+     * synchronized on the port, so the port is also used as delivery lock.
+     */
+    private static boolean lazyConnectionHandlerThread(PortType type,
+            MessageUpcall upcall, ReceivePortConnectUpcall connUpcall) {
+        return upcall == null && connUpcall == null
                 && (type.hasCapability(PortType.CONNECTION_ONE_TO_ONE) ||
                         type.hasCapability(PortType.CONNECTION_ONE_TO_MANY))
                 && !type.hasCapability(PortType.RECEIVE_POLL)
@@ -226,17 +238,9 @@ class TcpReceivePort extends ReceivePort implements TcpProtocol {
     public void messageArrived(ReadMessage msg, boolean fromHandlerThread) {
         super.messageArrived(msg);
         if (fromHandlerThread && upcall == null) {
-            synchronized(this) {
-                // Wait until the message is finished before starting to
-                // read from the stream again ...
-                while (! msg.isFinished()) {
-                    try {
-                        wait();
-                    } catch(Exception e) {
-                        // Ignored
-                    }
-                }
-            }
+            // Wait until the message is finished before starting to
+            // read from the stream again ...
+            waitUntilFinished(msg);
         }
     }
 
@@ -3,7 +3,9 @@
 package ibis.ipl.impl.tcp;
 
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.ChannelArrayOutputStream;
 import ibis.io.Conversion;
+import ibis.io.DataOutputStream;
 import ibis.io.OutputStreamSplitter;
 import ibis.io.SplitterException;
 import ibis.ipl.PortType;
@@ -31,7 +33,11 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
             super(port, target);
             this.s = s;
             out = s.getOutputStream();
-            splitter.add(out);
+            if (channelStream != null) {
+                channelStream.setChannel(s.getChannel());
+            } else {
+                splitter.add(out);
+            }
         }
 
         public void closeConnection() {
@@ -40,10 +46,14 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
             } catch (Throwable e) {
                 // ignored
             } finally {
-                try {
-                    splitter.remove(out);
-                } catch (IOException e) {
-                    // ignore
+                if (channelStream != null) {
+                    channelStream.setChannel(null);
+                } else {
+                    try {
+                        splitter.remove(out);
+                    } catch (IOException e) {
+                        // ignore
+                    }
                 }
             }
         }
@@ -51,7 +61,13 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
 
     final OutputStreamSplitter splitter;
 
-    final BufferedArrayOutputStream bufferedStream;
+    /**
+     * Only used when sending through socket channels, which is only done
+     * for ports that have at most one connection.
+     */
+    final ChannelArrayOutputStream channelStream;
+
+    final DataOutputStream bufferedStream;
 
     TcpSendPort(Ibis ibis, PortType type, String name,
             SendPortDisconnectUpcall cU, Properties props) throws IOException {
@@ -67,16 +83,31 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
                                     PortType.CONNECTION_MANY_TO_MANY));
             
 
-        bufferedStream = new BufferedArrayOutputStream(splitter);
+        if (((TcpIbis) ibis).useChannels()
+                && !type.hasCapability(PortType.CONNECTION_ONE_TO_MANY)
+                && !type.hasCapability(PortType.CONNECTION_MANY_TO_MANY)) {
+            channelStream = new ChannelArrayOutputStream(null);
+            bufferedStream = channelStream;
+        } else {
+            channelStream = null;
+            bufferedStream = new BufferedArrayOutputStream(splitter);
+        }
         initStream(bufferedStream);
     }
 
     protected long totalWritten() {
+        if (channelStream != null) {
+            return channelStream.bytesWritten();
+        }
         return splitter.bytesWritten();
     }
 
     protected void resetWritten() {
-        splitter.resetBytesWritten();
+        if (channelStream != null) {
+            channelStream.resetBytesWritten();
+        } else {
+            splitter.resetBytesWritten();
+        }
     }
 
     SendPortIdentifier getIdent() {
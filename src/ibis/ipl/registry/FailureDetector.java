@@ -0,0 +1,170 @@
+package ibis.ipl.registry;
+
+/**
+ * Phi accrual failure detector for a single node, as described by Hayashibara
+ * et al. It keeps the intervals between recent signs of life (heartbeats,
+ * replies, gossip) of the node, and instead of a yes or no answer gives a
+ * suspicion level phi that the node has failed:
+ * phi = -log10(P(interval &gt; time since the last sign of life)), with the
+ * intervals assumed to be normally distributed. A phi of 1 means a chance of
+ * about 10% that the node will still show up, a phi of 8 a chance of about
+ * 0.000001%. Nodes that are normally silent for a long time now and then,
+ * for instance during garbage collection, thus get more time before they are
+ * suspected than nodes that always report at a steady rate.
+ *
+ * @ibis.experimental
+ */
+public final class FailureDetector {
+
+    /** Number of intervals used to estimate the distribution. */
+    private static final int WINDOW_SIZE = 100;
+
+    // coefficients of the logistic approximation of the normal distribution
+    private static final double A = 0.070566;
+
+    private static final double B = 1.5976;
+
+    private final long[] intervals = new long[WINDOW_SIZE];
+
+    private int count = 0;
+
+    private int next = 0;
+
+    private long sum = 0;
+
+    private long sumOfSquares = 0;
+
+    private final long expectedInterval;
+
+    private final long minimumDeviation;
+
+    private long lastHeartbeat;
+
+    /**
+     * Creates a failure detector for a node which has just been seen.
+     *
+     * @param expectedInterval
+     *            interval (in milliseconds) between signs of life assumed
+     *            until some have been observed. Also determines the minimum
+     *            standard deviation of the intervals (a tenth of this value).
+     */
+    public FailureDetector(long expectedInterval) {
+        this(expectedInterval, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a failure detector for a node which was last seen at the given
+     * time.
+     *
+     * @param expectedInterval
+     *            interval (in milliseconds) between signs of life assumed
+     *            until some have been observed. Also determines the minimum
+     *            standard deviation of the intervals (a tenth of this value).
+     * @param lastHeartbeat
+     *            time the node was last seen.
+     */
+    public FailureDetector(long expectedInterval, long lastHeartbeat) {
+        this.expectedInterval = Math.max(expectedInterval, 1);
+        this.minimumDeviation = Math.max(this.expectedInterval / 10, 1);
+        this.lastHeartbeat = lastHeartbeat;
+    }
+
+    /**
+     * Records a sign of life of the node, now.
+     */
+    public void heartbeat() {
+        heartbeat(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a sign of life of the node at the given time. Times before the
+     * last recorded sign of life are ignored.
+     */
+    public synchronized void heartbeat(long time) {
+        long interval = time - lastHeartbeat;
+        if (interval <= 0) {
+            return;
+        }
+        lastHeartbeat = time;
+
+        if (count == WINDOW_SIZE) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            sumOfSquares -= oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        sum += interval;
+        sumOfSquares += interval * interval;
+        next = (next + 1) % WINDOW_SIZE;
+    }
+
+    public synchronized long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    private double mean() {
+        if (count < 2) {
+            return expectedInterval;
+        }
+        return (double) sum / count;
+    }
+
+    private double deviation() {
+        double deviation;
+        if (count < 2) {
+            deviation = expectedInterval / 4.0;
+        } else {
+            double mean = (double) sum / count;
+            double variance = ((double) sumOfSquares / count) - (mean * mean);
+            deviation = Math.sqrt(Math.max(variance, 0));
+        }
+        return Math.max(deviation, minimumDeviation);
+    }
+
+    /**
+     * Returns the current suspicion level of the node.
+     */
+    public double phi() {
+        return phi(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the suspicion level of the node at the given time.
+     */
+    public synchronized double phi(long time) {
+        double y = ((time - lastHeartbeat) - mean()) / deviation();
+        double k = y * (B + A * y * y);
+
+        if (k > 30) {
+            // log10(1 + e^k) without overflow
+            return k / Math.log(10);
+        }
+        return Math.log10(1 + Math.exp(k));
+    }
+
+    /**
+     * Returns the time at which the suspicion level of the node will reach the
+     * given threshold, if no sign of life is recorded before then.
+     */
+    public synchronized long suspectTime(double threshold) {
+        if (threshold <= 0) {
+            return lastHeartbeat;
+        }
+
+        // invert phi = log10(1 + e^k), then solve A*y^3 + B*y - k = 0
+        double k = threshold * Math.log(10) + Math.log(1 - Math.pow(10, -threshold));
+        double p = B / A;
+        double q = -k / A;
+        double d = Math.sqrt((q * q / 4) + (p * p * p / 27));
+        double y = Math.cbrt(-q / 2 + d) + Math.cbrt(-q / 2 - d);
+
+        return lastHeartbeat + (long) (mean() + y * deviation());
+    }
+
+    public synchronized String toString() {
+        return String.format("phi = %.2f, mean interval = %.0f ms, "
+                + "deviation = %.0f ms", phi(), mean(), deviation());
+    }
+}
@@ -0,0 +1,88 @@
+package ibis.ipl.registry.central;
+
+import ibis.ipl.impl.IbisIdentifier;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Input stream for data written by a {@link CompactOutputStream}.
+ */
+public final class CompactInputStream extends DataInputStream {
+
+    private final ArrayList<IbisIdentifier> identifiers = new ArrayList<IbisIdentifier>();
+
+    private int lastTime = 0;
+
+    public CompactInputStream(InputStream in) {
+        super(in);
+    }
+
+    public int readVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed variable length integer");
+    }
+
+    public int readTime() throws IOException {
+        int zigzag = readVarInt();
+        int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+        lastTime += delta;
+        return lastTime;
+    }
+
+    public IbisIdentifier readIbis() throws IOException {
+        int index = readVarInt();
+
+        if (index == 0) {
+            IbisIdentifier result = new IbisIdentifier(this);
+            identifiers.add(result);
+            return result;
+        }
+
+        if (index > identifiers.size()) {
+            throw new IOException("unknown ibis identifier index: " + index);
+        }
+        return identifiers.get(index - 1);
+    }
+
+    /**
+     * Reads a non-negative integer, compact if the stream is a compact
+     * stream.
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        if (in instanceof CompactInputStream) {
+            return ((CompactInputStream) in).readVarInt();
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Reads an event time, compact if the stream is a compact stream.
+     */
+    public static int readTime(DataInput in) throws IOException {
+        if (in instanceof CompactInputStream) {
+            return ((CompactInputStream) in).readTime();
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Reads an ibis identifier, compact if the stream is a compact stream.
+     */
+    public static IbisIdentifier readIbis(DataInput in) throws IOException {
+        if (in instanceof CompactInputStream) {
+            return ((CompactInputStream) in).readIbis();
+        }
+        return new IbisIdentifier(in);
+    }
+}
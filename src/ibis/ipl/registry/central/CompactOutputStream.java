@@ -0,0 +1,98 @@
+package ibis.ipl.registry.central;
+
+import ibis.ipl.impl.IbisIdentifier;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Output stream for registry state and event batches. Times and small
+ * numbers are written as variable length integers, and every ibis
+ * identifier is only written in full the first time it occurs in the
+ * stream, after that as an index. Data written to this stream must be read
+ * with a {@link CompactInputStream}.
+ */
+public final class CompactOutputStream extends DataOutputStream {
+
+    private final HashMap<IbisIdentifier, Integer> identifiers = new HashMap<IbisIdentifier, Integer>();
+
+    private int lastTime = 0;
+
+    public CompactOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Writes a non-negative integer in as few bytes as possible.
+     */
+    public void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    /**
+     * Writes an event time, as the difference with the previous time
+     * written to this stream.
+     */
+    public void writeTime(int time) throws IOException {
+        int delta = time - lastTime;
+        lastTime = time;
+        // zigzag encoding, so small negative deltas are small too
+        writeVarInt((delta << 1) ^ (delta >> 31));
+    }
+
+    public void writeIbis(IbisIdentifier ibis) throws IOException {
+        Integer index = identifiers.get(ibis);
+
+        if (index != null) {
+            writeVarInt(index + 1);
+            return;
+        }
+
+        writeVarInt(0);
+        ibis.writeTo(this);
+        identifiers.put(ibis, identifiers.size());
+    }
+
+    /**
+     * Writes a non-negative integer, compact if the stream is a compact
+     * stream.
+     */
+    public static void writeVarInt(DataOutput out, int value)
+            throws IOException {
+        if (out instanceof CompactOutputStream) {
+            ((CompactOutputStream) out).writeVarInt(value);
+        } else {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Writes an event time, compact if the stream is a compact stream.
+     */
+    public static void writeTime(DataOutput out, int time) throws IOException {
+        if (out instanceof CompactOutputStream) {
+            ((CompactOutputStream) out).writeTime(time);
+        } else {
+            out.writeInt(time);
+        }
+    }
+
+    /**
+     * Writes an ibis identifier, compact if the stream is a compact stream.
+     */
+    public static void writeIbis(DataOutput out, IbisIdentifier ibis)
+            throws IOException {
+        if (out instanceof CompactOutputStream) {
+            ((CompactOutputStream) out).writeIbis(ibis);
+        } else {
+            ibis.writeTo(out);
+        }
+    }
+}
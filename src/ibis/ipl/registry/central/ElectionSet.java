@@ -20,7 +20,7 @@ public class ElectionSet implements Iterable<Election> {
     }
 
     public void init(DataInput in) throws IOException {
-        int nrOfElections = in.readInt();
+        int nrOfElections = CompactInputStream.readVarInt(in);
 
         if (nrOfElections < 0) {
             throw new IOException("negative number of events");
@@ -34,7 +34,7 @@ public class ElectionSet implements Iterable<Election> {
     }
 
     public void writeTo(DataOutput out) throws IOException {
-        out.writeInt(size());
+        CompactOutputStream.writeVarInt(out, size());
 
         for (Election election : elections.values()) {
             election.getEvent().writeTo(out);
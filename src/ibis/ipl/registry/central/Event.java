@@ -61,35 +61,35 @@ public final class Event implements Serializable, Comparable<Event> {
 	}
 
 	public Event(DataInput in) throws IOException {
-		time = in.readInt();
-		type = in.readInt();
+		time = CompactInputStream.readTime(in);
+		type = CompactInputStream.readVarInt(in);
 		description = in.readUTF();
 		if (in.readBoolean()) {
-			ibis = new IbisIdentifier(in);
+			ibis = CompactInputStream.readIbis(in);
 		} else {
 			ibis = null;
 		}
 
-		destinations = new IbisIdentifier[in.readInt()];
+		destinations = new IbisIdentifier[CompactInputStream.readVarInt(in)];
 		for (int i = 0; i < destinations.length; i++) {
-			destinations[i] = new IbisIdentifier(in);
+			destinations[i] = CompactInputStream.readIbis(in);
 		}
 	}
 
 	public void writeTo(DataOutput out) throws IOException {
-		out.writeInt(time);
-		out.writeInt(type);
+		CompactOutputStream.writeTime(out, time);
+		CompactOutputStream.writeVarInt(out, type);
 		out.writeUTF(description);
 
 		if (ibis != null) {
 			out.writeBoolean(true);
-			ibis.writeTo(out);
+			CompactOutputStream.writeIbis(out, ibis);
 		} else {
 			out.writeBoolean(false);
 		}
-		out.writeInt(destinations.length);
+		CompactOutputStream.writeVarInt(out, destinations.length);
 		for (int i = 0; i < destinations.length; i++) {
-			destinations[i].writeTo(out);
+			CompactOutputStream.writeIbis(out, destinations[i]);
 		}
 	}
 
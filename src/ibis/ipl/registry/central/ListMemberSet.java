@@ -148,7 +148,7 @@ public final class ListMemberSet implements MemberSet {
     }
 
     public void init(DataInputStream in) throws IOException {
-        int nrOfMembers = in.readInt();
+        int nrOfMembers = CompactInputStream.readVarInt(in);
         
         if (nrOfMembers < 0) {
             throw new IOException("negative list size recieved" + nrOfMembers);
@@ -160,7 +160,7 @@ public final class ListMemberSet implements MemberSet {
     }
 
     public void writeTo(DataOutputStream out) throws IOException {
-        out.writeInt(list.size());
+        CompactOutputStream.writeVarInt(out, list.size());
         for (Member member: list) {
             member.writeTo(out);
         }
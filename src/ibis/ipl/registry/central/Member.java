@@ -1,6 +1,7 @@
 package ibis.ipl.registry.central;
 
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.registry.FailureDetector;
 
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -26,6 +27,9 @@ public final class Member implements Serializable {
     // or when it was last reported to be dead (client) 
     private long time;
 
+    // signs of life of this member (server only)
+    private transient FailureDetector detector = null;
+
     public Member(IbisIdentifier ibis, Event event) {
         this.ibis = ibis;
         this.event = event;
@@ -34,14 +38,14 @@ public final class Member implements Serializable {
     }
 
     public Member(DataInput in) throws IOException {
-        ibis = new IbisIdentifier(in);
+        ibis = CompactInputStream.readIbis(in);
         event = new Event(in);
         currentEventTime = 0;
         time = 0;
     }
 
     public void writeTo(DataOutput out) throws IOException {
-        ibis.writeTo(out);
+        CompactOutputStream.writeIbis(out, ibis);
         event.writeTo(out);
     }
 
@@ -68,6 +72,29 @@ public final class Member implements Serializable {
         time = System.currentTimeMillis();
     }
 
+    public synchronized void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Updates the time this member was last seen, and records this sign of
+     * life in its failure detector, if any.
+     */
+    public synchronized void seen() {
+        updateTime();
+        if (detector != null) {
+            detector.heartbeat(time);
+        }
+    }
+
+    public synchronized void setFailureDetector(FailureDetector detector) {
+        this.detector = detector;
+    }
+
+    public synchronized FailureDetector getFailureDetector() {
+        return detector;
+    }
+
     public synchronized void clearTime() {
     	time = 0;
     }
@@ -2,7 +2,9 @@ package ibis.ipl.registry.central;
 
 public final class Protocol {
 
-    public static final byte MAGIC_BYTE = 54;
+    // changed whenever the format of the messages changes, so that clients
+    // and servers of different versions refuse to talk to each other
+    public static final byte MAGIC_BYTE = 56;
     
     public static final int VIRTUAL_PORT = 302;
     
@@ -38,10 +40,17 @@ public final class Protocol {
 
     public static final byte OPCODE_TERMINATE = 14;
 
-    public static final int NR_OF_OPCODES = 15;
+    public static final byte OPCODE_SESSION = 15;
+
+    public static final int NR_OF_OPCODES = 16;
+
+    // time (in milliseconds) after which a client closes its session with
+    // the server if it has no outstanding requests. The server closes
+    // sessions that send no requests for twice this time.
+    public static final int SESSION_IDLE_TIMEOUT = 30000;
 
     public static final String[] OPCODE_NAMES = { "JOIN", "LEAVE", "GOSSIP",
             "ELECT", "SEQUENCE_NR", "DEAD", "MAYBE_DEAD", "SIGNAL", "PING",
             "PUSH", "BROADCAST", "FORWARD", "GET_STATE", "HEARTBEAT",
-            "TERMINATE"};
+            "TERMINATE", "SESSION"};
 }
@@ -37,6 +37,17 @@ public class RegistryProperties {
     public static final String SERVER_CONNECT_TIMEOUT = PREFIX
             + "server.connect.timeout";
 
+    public static final String CLIENT_SESSION = PREFIX + "client.session";
+
+    public static final String COMPRESS_STATE = PREFIX + "compress.state";
+
+    public static final String PHI_THRESHOLD = PREFIX + "phi.threshold";
+
+    public static final String SERVER_MAX_SESSIONS = PREFIX
+            + "server.max.sessions";
+
+    public static final String SERVER_JOURNAL = PREFIX + "server.journal";
+
     public static final String STATISTICS = PREFIX + "statistics";
 
     public static final String STATISTICS_INTERVAL = PREFIX
@@ -95,6 +106,21 @@ public class RegistryProperties {
                     "10",
                     "Int(seconds): how long does the server attempt to connect to a client before giving up" },
 
+            { CLIENT_SESSION, "true",
+                    "Boolean: send requests to the server over a single long-lived connection, instead of a new connection per request" },
+
+            { SERVER_MAX_SESSIONS, "1000",
+                    "Int: maximum number of long-lived client connections the server accepts, each of which uses a thread of the server. Other clients use a new connection per request" },
+
+            { COMPRESS_STATE, "true",
+                    "Boolean: compress the pool state sent to this client when it joins" },
+
+            { PHI_THRESHOLD, "8",
+                    "Double: suspicion level (phi) an unreachable member (or the server) must also reach before it is declared dead. 0 declares it dead as soon as it cannot be reached" },
+
+            { SERVER_JOURNAL, null,
+                    "String: directory in which the server journals the state of each pool, so pools survive a restart of the server. Not set: no journal" },
+
             { STATISTICS, "false",
                     "Boolean: gather per-pool statistics at the server and save them to a file" },
 
@@ -7,6 +7,8 @@ import ibis.ipl.IbisProperties;
 import ibis.ipl.impl.Ibis;
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.impl.Location;
+import ibis.ipl.registry.central.CompactInputStream;
+import ibis.ipl.registry.central.CompactOutputStream;
 import ibis.ipl.registry.central.Event;
 import ibis.ipl.registry.central.Protocol;
 import ibis.ipl.registry.central.RegistryProperties;
@@ -56,6 +58,9 @@ final class CommunicationHandler implements Runnable {
 
     private final Statistics statistics;
 
+    // long-lived connection to the server, or null if not used
+    private final ServerSession session;
+
     // communication settings
 
     private final boolean peerBootstrap;
@@ -64,6 +69,9 @@ final class CommunicationHandler implements Runnable {
 
     private final boolean tree;
 
+    // ask for compressed state when bootstrapping
+    private final boolean compressState;
+
     // bootstrap data
 
     private IbisIdentifier identifier;
@@ -115,6 +123,9 @@ final class CommunicationHandler implements Runnable {
         timeout = properties
                 .getIntProperty(RegistryProperties.CLIENT_CONNECT_TIMEOUT) * 1000;
 
+        compressState = properties
+                .getBooleanProperty(RegistryProperties.COMPRESS_STATE);
+
         String clientID = this.properties.getProperty(Ibis.ID_PROPERTY);
         client = Client.getOrCreateClient(clientID, properties, 0);
         virtualSocketFactory = client.getFactory();
@@ -128,6 +139,13 @@ final class CommunicationHandler implements Runnable {
             throw new IOException("could not get address of server");
         }
 
+        if (properties.getBooleanProperty(RegistryProperties.CLIENT_SESSION)) {
+            session = new ServerSession(serverAddress, timeout,
+                    virtualSocketFactory);
+        } else {
+            session = null;
+        }
+
         logger.debug("local address = " + serverSocket.getLocalSocketAddress());
         logger.debug("server address = " + serverAddress);
 
@@ -138,7 +156,11 @@ final class CommunicationHandler implements Runnable {
 
         boolean exitOnServerFailure = properties.getBooleanProperty(RegistryProperties.EXIT_ON_SERVER_FAILURE);
         
-        heartbeat = new Heartbeat(this, pool, heartbeatInterval, exitOnServerFailure);
+        double phiThreshold = properties
+                .getDoubleProperty(RegistryProperties.PHI_THRESHOLD);
+
+        heartbeat = new Heartbeat(this, pool, heartbeatInterval,
+                exitOnServerFailure, phiThreshold);
 
         // init gossiper (if needed)
         if (gossip) {
@@ -190,6 +212,8 @@ final class CommunicationHandler implements Runnable {
                 .getIntProperty(RegistryProperties.STATISTICS_INTERVAL) * 1000;
         boolean purgeHistory = properties
                 .getBooleanProperty(RegistryProperties.PURGE_HISTORY);
+        double phiThreshold = properties
+                .getDoubleProperty(RegistryProperties.PHI_THRESHOLD);
 
         VirtualSocketAddress address = serverSocket.getLocalSocketAddress();
 
@@ -249,6 +273,7 @@ final class CommunicationHandler implements Runnable {
             connection.out().writeBoolean(keepStatistics);
             connection.out().writeLong(statisticsInterval);
             connection.out().writeBoolean(purgeHistory);
+            connection.out().writeDouble(phiThreshold);
 
             byte[] credentialBytes = Conversion.object2byte(credentials);
             connection.out().writeInt(credentialBytes.length);
@@ -306,6 +331,18 @@ final class CommunicationHandler implements Runnable {
 
     }
 
+    /**
+     * Returns a connection for a single request to the server: either on the
+     * session with the server, or a new connection.
+     */
+    private Connection connectToServer(int timeout) throws IOException {
+        if (session != null) {
+            return session.connect();
+        }
+        return new Connection(serverAddress, timeout, true,
+                virtualSocketFactory);
+    }
+
     Client getClient() {
         return client;
     }
@@ -341,6 +378,7 @@ final class CommunicationHandler implements Runnable {
 
                     identifier.writeTo(connection.out());
                     connection.out().writeInt(joinTime);
+                    connection.out().writeBoolean(compressState);
                     connection.out().flush();
 
                     connection.getAndCheckReply();
@@ -372,6 +410,7 @@ final class CommunicationHandler implements Runnable {
             connection.out().writeByte(Protocol.OPCODE_GET_STATE);
             identifier.writeTo(connection.out());
             connection.out().writeInt(joinTime);
+            connection.out().writeBoolean(compressState);
             connection.out().flush();
 
             connection.getAndCheckReply();
@@ -395,8 +434,7 @@ final class CommunicationHandler implements Runnable {
             throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -430,8 +468,7 @@ final class CommunicationHandler implements Runnable {
     public void terminate() throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -466,8 +503,7 @@ final class CommunicationHandler implements Runnable {
         }
 
         logger.debug("getting sequence number");
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -508,8 +544,7 @@ final class CommunicationHandler implements Runnable {
 
         logger.debug("declaring " + ibis + " to be dead");
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -546,8 +581,7 @@ final class CommunicationHandler implements Runnable {
 
         logger.debug("reporting " + ibis + " to possibly be dead");
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -598,8 +632,7 @@ final class CommunicationHandler implements Runnable {
 
         Connection connection = null;
         try {
-            connection = new Connection(serverAddress, timeout, true,
-                    virtualSocketFactory);
+            connection = connectToServer(timeout);
 
             connection.out().writeByte(Protocol.MAGIC_BYTE);
             connection.out().writeByte(Protocol.OPCODE_HEARTBEAT);
@@ -631,8 +664,7 @@ final class CommunicationHandler implements Runnable {
 
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -674,8 +706,7 @@ final class CommunicationHandler implements Runnable {
             timeout = this.timeout;
         }
 
-        Connection connection = new Connection(serverAddress, (int) timeout,
-                true, virtualSocketFactory);
+        Connection connection = connectToServer((int) timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -743,11 +774,13 @@ final class CommunicationHandler implements Runnable {
                 logger.debug("localtime = " + localTime + ", peerTime = "
                         + peerTime + ", receiving events");
 
-                int nrOfEvents = connection.in().readInt();
+                CompactInputStream eventIn = new CompactInputStream(connection
+                        .in());
+                int nrOfEvents = eventIn.readVarInt();
                 if (nrOfEvents > 0) {
                     newEvents = new Event[nrOfEvents];
                     for (int i = 0; i < newEvents.length; i++) {
-                        newEvents[i] = new Event(connection.in());
+                        newEvents[i] = new Event(eventIn);
                     }
                 }
             } else if (peerTime < localTime) {
@@ -756,10 +789,13 @@ final class CommunicationHandler implements Runnable {
 
                 Event[] sendEvents = pool.getEventsFrom(peerTime);
 
-                connection.out().writeInt(sendEvents.length);
+                CompactOutputStream eventOut = new CompactOutputStream(
+                        connection.out());
+                eventOut.writeVarInt(sendEvents.length);
                 for (Event event : sendEvents) {
-                    event.writeTo(connection.out());
+                    event.writeTo(eventOut);
                 }
+                eventOut.flush();
 
             } else {
                 // nothing to send either way
@@ -783,17 +819,23 @@ final class CommunicationHandler implements Runnable {
         }
     }
 
-    void forward(IbisIdentifier ibis) {
+    /**
+     * Forwards events to the given ibis.
+     * 
+     * @return false if the ibis is still in the pool, but could not be
+     *         reached.
+     */
+    boolean forward(IbisIdentifier ibis) {
         byte opcode = Protocol.OPCODE_FORWARD;
         long start = System.currentTimeMillis();
 
         if (ibis.equals(getIdentifier())) {
             logger.debug("not forwarding events to self");
-            return;
+            return true;
         }
 
         if (pool.isStopped()) {
-            return;
+            return true;
         }
 
         logger.debug(identifier + ": forwarding to: " + ibis);
@@ -815,6 +857,7 @@ final class CommunicationHandler implements Runnable {
 
             logger.debug("waiting for peer time of peer " + ibis);
             boolean requestBootstrap = connection.in().readBoolean();
+            boolean compress = connection.in().readBoolean();
             int peerJoinTime = connection.in().readInt();
             int requestedEventTime = connection.in().readInt();
 
@@ -827,7 +870,7 @@ final class CommunicationHandler implements Runnable {
             // send bootstrap (if needed)
             if (requestBootstrap) {
                 logger.debug("sending state");
-                pool.writeState(connection.out(), peerJoinTime);
+                pool.writeState(connection.out(), peerJoinTime, compress);
 
             }
 
@@ -835,13 +878,16 @@ final class CommunicationHandler implements Runnable {
 
             logger.debug("sending " + events.length + " entries to " + ibis);
 
-            connection.out().writeInt(events.length);
+            CompactOutputStream eventOut = new CompactOutputStream(connection
+                    .out());
+            eventOut.writeVarInt(events.length);
             for (int i = 0; i < events.length; i++) {
-                events[i].writeTo(connection.out());
+                events[i].writeTo(eventOut);
             }
 
             // no updated of minimum time
-            connection.out().writeInt(-1);
+            eventOut.writeInt(-1);
+            eventOut.flush();
 
             connection.close();
 
@@ -850,10 +896,13 @@ final class CommunicationHandler implements Runnable {
                 statistics.add(opcode, System.currentTimeMillis() - start,
                         connection.read(), connection.written(), false);
             }
+            return true;
         } catch (IOException e) {
             if (pool.isMember(ibis)) {
                 logger.error("cannot reach " + ibis + " to push events to", e);
+                return false;
             }
+            return true;
         } finally {
             if (connection != null) {
                 connection.close();
@@ -886,19 +935,23 @@ final class CommunicationHandler implements Runnable {
         if (localTime > peerTime) {
             Event[] sendEvents = pool.getEventsFrom(peerTime);
 
-            connection.out().writeInt(sendEvents.length);
+            CompactOutputStream eventOut = new CompactOutputStream(connection
+                    .out());
+            eventOut.writeVarInt(sendEvents.length);
             for (Event event : sendEvents) {
-                event.writeTo(connection.out());
+                event.writeTo(eventOut);
             }
-            connection.out().flush();
+            eventOut.flush();
 
         } else if (localTime < peerTime) {
-            int nrOfEvents = connection.in().readInt();
+            CompactInputStream eventIn = new CompactInputStream(connection
+                    .in());
+            int nrOfEvents = eventIn.readVarInt();
 
             if (nrOfEvents > 0) {
                 Event[] newEvents = new Event[nrOfEvents];
                 for (int i = 0; i < newEvents.length; i++) {
-                    newEvents[i] = new Event(connection.in());
+                    newEvents[i] = new Event(eventIn);
                 }
 
                 connection.close();
@@ -940,6 +993,7 @@ final class CommunicationHandler implements Runnable {
         long gatheredData = System.currentTimeMillis();
 
         connection.out().writeBoolean(requestBootstrap);
+        connection.out().writeBoolean(compressState);
         connection.out().writeInt(joinTime);
         connection.out().writeInt(nextRequiredEvent);
 
@@ -959,7 +1013,8 @@ final class CommunicationHandler implements Runnable {
 
         long readBootstrap = System.currentTimeMillis();
 
-        int events = connection.in().readInt();
+        CompactInputStream eventIn = new CompactInputStream(connection.in());
+        int events = eventIn.readVarInt();
 
         logger.debug("receiving " + events + " events");
 
@@ -970,13 +1025,13 @@ final class CommunicationHandler implements Runnable {
 
         newEvents = new Event[events];
         for (int i = 0; i < newEvents.length; i++) {
-            newEvents[i] = new Event(connection.in());
+            newEvents[i] = new Event(eventIn);
             if (logger.isDebugEnabled()) {
                 logger.debug("received event " + newEvents[i]);
             }
         }
 
-        int minEventTime = connection.in().readInt();
+        int minEventTime = eventIn.readInt();
 
         long readEvents = System.currentTimeMillis();
 
@@ -1028,6 +1083,7 @@ final class CommunicationHandler implements Runnable {
 
         IbisIdentifier identifier = new IbisIdentifier(connection.in());
         int joinTime = connection.in().readInt();
+        boolean compress = connection.in().readBoolean();
 
         String poolName = identifier.poolName();
 
@@ -1046,7 +1102,7 @@ final class CommunicationHandler implements Runnable {
 
         connection.sendOKReply();
 
-        pool.writeState(connection.out(), joinTime);
+        pool.writeState(connection.out(), joinTime, compress);
 
         connection.out().flush();
         connection.close();
@@ -1155,7 +1211,18 @@ final class CommunicationHandler implements Runnable {
         threadEnded();
     }
 
+    /**
+     * Returns the current suspicion level (phi) that the server is gone.
+     */
+    double getServerPhi() {
+        return heartbeat.getServerPhi();
+    }
+
     void end() {
+        if (session != null) {
+            session.end();
+        }
+
         try {
             serverSocket.close();
         } catch (Exception e) {
@@ -1,5 +1,6 @@
 package ibis.ipl.registry.central.client;
 
+import ibis.ipl.registry.FailureDetector;
 import ibis.util.ThreadPool;
 
 import org.slf4j.Logger;
@@ -17,21 +18,31 @@ public class Heartbeat implements Runnable {
 
     private final boolean exitOnServerFailure;
 
+    private final double phiThreshold;
+
+    // successful contacts with the server
+    private final FailureDetector serverDetector;
+
     private long heartbeatDeadline;
     
     private long serverFailureDeadline;
 
     Heartbeat(CommunicationHandler commHandler, Pool pool,
-            long heartbeatInterval, boolean exitOnServerFailure) {
+            long heartbeatInterval, boolean exitOnServerFailure,
+            double phiThreshold) {
         this.commHandler = commHandler;
         this.pool = pool;
         this.heartbeatInterval = heartbeatInterval;
         this.exitOnServerFailure = exitOnServerFailure;
+        this.phiThreshold = phiThreshold;
+
+        serverDetector = new FailureDetector(heartbeatInterval / 2);
 
         ThreadPool.createNew(this, "heartbeat thread");
     }
 
     synchronized void resetServerDeadline() {
+        serverDetector.heartbeat();
         serverFailureDeadline = System.currentTimeMillis()
                 + (heartbeatInterval * 5);
     }
@@ -50,8 +61,21 @@ public class Heartbeat implements Runnable {
         // no need to wake up heartbeat thread, deadline will only be later
     }
     
+    /**
+     * The server is considered lost if the deadline has passed, and it has
+     * also been silent for long compared to earlier intervals between
+     * contacts.
+     */
     synchronized boolean serverDeadlineExpired() {
-        return System.currentTimeMillis() > serverFailureDeadline;
+        return System.currentTimeMillis() > serverFailureDeadline
+                && serverDetector.phi() >= phiThreshold;
+    }
+
+    /**
+     * Returns the current suspicion level (phi) that the server is gone.
+     */
+    double getServerPhi() {
+        return serverDetector.phi();
     }
 
     synchronized void nudge() {
@@ -3,6 +3,7 @@ package ibis.ipl.registry.central.client;
 import ibis.ipl.registry.central.Member;
 import ibis.util.ThreadPool;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -29,6 +30,15 @@ final class IterativeEventPusher extends Thread {
             count = this.q.size();
         }
 
+        /**
+         * Adds more work to this queue, while it is being processed.
+         */
+        synchronized void add(Member[] work) {
+            q.addAll(Arrays.asList(work));
+
+            count += work.length;
+        }
+
         synchronized Member next() {
             if (q.isEmpty()) {
                 return null;
@@ -77,7 +87,21 @@ final class IterativeEventPusher extends Thread {
 
                 logger.debug("pushing to " + work);
 
-                commHandler.forward(work.getIbis());
+                if (!commHandler.forward(work.getIbis())) {
+                    // repair the tree: forward to the children of this
+                    // member ourselves, and have the server check it.
+                    Member[] orphans = pool.getChildren(work.getIbis());
+                    logger.debug("could not reach " + work
+                            + ", forwarding to " + orphans.length
+                            + " children instead");
+                    try {
+                        commHandler.maybeDead(work.getIbis());
+                    } catch (IOException e) {
+                        logger.debug("could not report " + work
+                                + " to the server", e);
+                    }
+                    workQ.add(orphans);
+                }
                 workQ.doneJob();
             }
         }
@@ -4,6 +4,8 @@ import ibis.ipl.IbisCapabilities;
 import ibis.ipl.IbisConfigurationException;
 import ibis.ipl.IbisProperties;
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.registry.central.CompactInputStream;
+import ibis.ipl.registry.central.CompactOutputStream;
 import ibis.ipl.registry.central.Election;
 import ibis.ipl.registry.central.ElectionSet;
 import ibis.ipl.registry.central.Event;
@@ -21,9 +23,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -202,11 +207,19 @@ final class Pool {
     void init(DataInputStream stream) throws IOException {
         long start = System.currentTimeMillis();
         // copy over data first so we are not blocked while reading data
-        byte[] bytes = new byte[stream.readInt()];
+        boolean compressed = stream.readBoolean();
+        int length = stream.readInt();
+        if (length < 0) {
+            throw new IOException("negative state size");
+        }
+        byte[] bytes = new byte[length];
         stream.readFully(bytes);
 
-        DataInputStream in = new DataInputStream(
-                new ByteArrayInputStream(bytes));
+        InputStream bytesIn = new ByteArrayInputStream(bytes);
+        if (compressed) {
+            bytesIn = new InflaterInputStream(bytesIn);
+        }
+        CompactInputStream in = new CompactInputStream(bytesIn);
 
         long read = System.currentTimeMillis();
 
@@ -291,9 +304,16 @@ final class Pool {
 
     }
 
-    void writeState(DataOutputStream out, int joinTime) throws IOException {
+    void writeState(DataOutputStream out, int joinTime, boolean compress)
+            throws IOException {
         ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(arrayOut);
+        CompactOutputStream dataOut;
+        if (compress) {
+            dataOut = new CompactOutputStream(new DeflaterOutputStream(
+                    arrayOut));
+        } else {
+            dataOut = new CompactOutputStream(arrayOut);
+        }
 
         synchronized (this) {
             if (!initialized) {
@@ -313,20 +333,22 @@ final class Pool {
 
             dataOut.writeBoolean(closed);
             if (closed) {
-            	closeEvent.writeTo(out);
+            	closeEvent.writeTo(dataOut);
             }
             dataOut.writeBoolean(terminated);
             if (terminated) {
-            	terminateEvent.writeTo(out);
+            	terminateEvent.writeTo(dataOut);
             }
         }
 
         dataOut.flush();
         dataOut.close();
         byte[] bytes = arrayOut.toByteArray();
+        out.writeBoolean(compress);
         out.writeInt(bytes.length);
         out.write(bytes);
-        logger.debug("pool state size = " + bytes.length);
+        logger.debug("pool state size = " + bytes.length + ", compressed = "
+                + compress);
     }
     
     synchronized String[] wonElections(IbisIdentifier id) {
@@ -536,6 +558,13 @@ final class Pool {
         return members.getChildren(registry.getIbisIdentifier());
     }
 
+    /**
+     * Returns the children of the given member in the broadcast tree.
+     */
+    synchronized Member[] getChildren(IbisIdentifier ibis) {
+        return members.getChildren(ibis);
+    }
+
     synchronized boolean hasTerminated() {
         return terminated;
     }
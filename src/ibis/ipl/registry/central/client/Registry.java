@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -433,7 +434,17 @@ public final class Registry extends ibis.ipl.registry.Registry {
     }
 
     public Map<String, String> managementProperties() {
-        return statistics.getMap();
+        Map<String, String> result;
+        if (statistics == null) {
+            result = new HashMap<String, String>();
+        } else {
+            result = statistics.getMap();
+        }
+
+        result.put("server.phi", String.format("%.2f", communicationHandler
+                .getServerPhi()));
+
+        return result;
     }
 
     public String getManagementProperty(String key)
@@ -0,0 +1,393 @@
+package ibis.ipl.registry.central.client;
+
+import ibis.ipl.registry.central.Protocol;
+import ibis.ipl.support.Connection;
+import ibis.ipl.support.RemoteException;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+import ibis.util.ThreadPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived connection to the registry server, shared by all requests of a
+ * client. Each request is sent as a frame tagged with a request id, so
+ * multiple requests can be outstanding on the connection at the same time. A
+ * reader thread hands each reply to the request with the same id. If the
+ * connection breaks, all outstanding requests fail, and the next request sets
+ * up a new connection. The connection is closed when it has been idle for
+ * {@link Protocol#SESSION_IDLE_TIMEOUT} milliseconds. If the server refuses
+ * the session, requests are sent on connections of their own for a while.
+ * The same happens if the server does not reply to a request within the
+ * timeout: the request fails, and so do the others outstanding on the
+ * connection, so that their callers can try again.
+ *
+ * Requests use the same format as on a connection of their own: a
+ * {@link Connection} returned by {@link #connect()} buffers the request, and
+ * sends it when flushed. Reading from it blocks until the reply has arrived.
+ */
+final class ServerSession {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(ServerSession.class);
+
+    private final VirtualSocketAddress serverAddress;
+
+    private final int timeout;
+
+    private final VirtualSocketFactory virtualSocketFactory;
+
+    private final HashMap<Integer, Request> pending = new HashMap<Integer, Request>();
+
+    private Connection connection = null;
+
+    private int nextRequestID = 0;
+
+    private boolean ended = false;
+
+    // time until which requests are not sent on a session, because the
+    // server refused one
+    private long refusedUntil = 0;
+
+    /**
+     * A single request. Its input is the reply of the server.
+     */
+    private final class Request extends InputStream {
+
+        private final int id;
+
+        private boolean sent = false;
+
+        // session connection the request was sent on, null if sent alone
+        private Connection connection = null;
+
+        private byte[] reply = null;
+
+        private int position = 0;
+
+        private IOException error = null;
+
+        Request(int id) {
+            this.id = id;
+        }
+
+        private void waitForReply() throws IOException {
+            Connection stuck;
+            synchronized (ServerSession.this) {
+                if (!sent) {
+                    throw new IOException("reply requested before request "
+                            + "was sent");
+                }
+                long deadline = System.currentTimeMillis() + timeout;
+                while (reply == null && error == null) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (timeout > 0 && left <= 0) {
+                        break;
+                    }
+                    try {
+                        ServerSession.this.wait(timeout > 0 ? left : 0);
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                }
+                if (reply != null) {
+                    return;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                // no reply in time, do not use a session for a while
+                pending.remove(id);
+                stuck = connection;
+                refusedUntil = System.currentTimeMillis()
+                        + Protocol.SESSION_IDLE_TIMEOUT;
+            }
+            SocketTimeoutException e = new SocketTimeoutException(
+                    "no reply from server within " + timeout + " ms");
+            connectionFailed(stuck, e);
+            throw e;
+        }
+
+        public int read() throws IOException {
+            waitForReply();
+            if (position >= reply.length) {
+                return -1;
+            }
+            return reply[position++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            waitForReply();
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= reply.length) {
+                return -1;
+            }
+            len = Math.min(len, reply.length - position);
+            System.arraycopy(reply, position, b, off, len);
+            position += len;
+            return len;
+        }
+    }
+
+    /**
+     * Buffers a request, and sends it when flushed.
+     */
+    private final class RequestOutputStream extends ByteArrayOutputStream {
+
+        private final Request request;
+
+        RequestOutputStream(Request request) {
+            this.request = request;
+        }
+
+        public void flush() throws IOException {
+            if (size() == 0) {
+                return;
+            }
+            if (request.sent) {
+                throw new IOException("request already sent");
+            }
+            send(request, toByteArray());
+            reset();
+        }
+    }
+
+    /**
+     * Reads replies from a connection, until it breaks.
+     */
+    private final class Reader implements Runnable {
+
+        private final Connection connection;
+
+        Reader(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    int requestID;
+                    try {
+                        requestID = connection.in().readInt();
+                    } catch (SocketTimeoutException e) {
+                        if (closeIfIdle(connection)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    int length = connection.in().readInt();
+                    if (length < 0) {
+                        throw new IOException("negative reply length");
+                    }
+                    byte[] reply = new byte[length];
+                    connection.in().readFully(reply);
+
+                    synchronized (ServerSession.this) {
+                        Request request = pending.remove(requestID);
+                        if (request == null) {
+                            logger.warn("reply for unknown request "
+                                    + requestID);
+                        } else {
+                            request.reply = reply;
+                            ServerSession.this.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                connectionFailed(connection, e);
+            }
+        }
+    }
+
+    ServerSession(VirtualSocketAddress serverAddress, int timeout,
+            VirtualSocketFactory virtualSocketFactory) {
+        this.serverAddress = serverAddress;
+        this.timeout = timeout;
+        this.virtualSocketFactory = virtualSocketFactory;
+    }
+
+    /**
+     * Returns a connection for a single request to the server. The caller
+     * writes the request, including the magic byte and opcode, and reads the
+     * reply, just as with a connection of its own.
+     */
+    Connection connect() {
+        Request request;
+        synchronized (this) {
+            request = new Request(nextRequestID++);
+        }
+        return new Connection(request, new RequestOutputStream(request));
+    }
+
+    /**
+     * Returns the current connection to the server, or sets up a new one.
+     * Must be called while holding the lock of this session.
+     * 
+     * @return the connection, or null if the server refused the session.
+     */
+    private Connection getConnection() throws IOException {
+        if (ended) {
+            throw new IOException("session with server ended");
+        }
+        if (connection == null) {
+            if (System.currentTimeMillis() < refusedUntil) {
+                return null;
+            }
+            logger.debug("setting up session with server");
+            Connection connection = new Connection(serverAddress, timeout,
+                    true, virtualSocketFactory);
+            try {
+                connection.out().writeByte(Protocol.MAGIC_BYTE);
+                connection.out().writeByte(Protocol.OPCODE_SESSION);
+                connection.getAndCheckReply();
+                connection.setTimeout(Protocol.SESSION_IDLE_TIMEOUT);
+            } catch (RemoteException e) {
+                logger.debug("server refused session", e);
+                refusedUntil = System.currentTimeMillis()
+                        + Protocol.SESSION_IDLE_TIMEOUT;
+                return null;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            this.connection = connection;
+            ThreadPool.createNew(new Reader(connection),
+                    "registry session reader");
+        }
+        return connection;
+    }
+
+    private void send(Request request, byte[] data) throws IOException {
+        // try again once if an existing connection turns out to be broken
+        boolean retry = true;
+
+        while (true) {
+            Connection connection;
+            synchronized (this) {
+                retry = retry && this.connection != null;
+                connection = getConnection();
+                if (connection != null) {
+                    request.sent = true;
+                    request.connection = connection;
+                    request.error = null;
+                    pending.put(request.id, request);
+                }
+            }
+
+            if (connection == null) {
+                sendAlone(request, data);
+                return;
+            }
+
+            try {
+                synchronized (connection) {
+                    connection.out().writeInt(request.id);
+                    connection.out().writeInt(data.length);
+                    connection.out().write(data);
+                    connection.out().flush();
+                }
+                return;
+            } catch (IOException e) {
+                synchronized (this) {
+                    pending.remove(request.id);
+                    request.sent = false;
+                }
+                connectionFailed(connection, e);
+                if (!retry) {
+                    throw e;
+                }
+                retry = false;
+                logger.debug("session with server broken, reconnecting", e);
+            }
+        }
+    }
+
+    /**
+     * Sends a request on a connection of its own, and reads the reply, which
+     * ends when the server closes the connection.
+     */
+    private void sendAlone(Request request, byte[] data) throws IOException {
+        Connection connection = new Connection(serverAddress, timeout, true,
+                virtualSocketFactory);
+        try {
+            connection.out().write(data);
+            connection.out().flush();
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = connection.in().read(buffer)) >= 0) {
+                reply.write(buffer, 0, n);
+            }
+
+            synchronized (this) {
+                request.sent = true;
+                request.reply = reply.toByteArray();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the given connection if it is still the current one, and no
+     * requests are outstanding on it.
+     * 
+     * @return true if the connection was closed.
+     */
+    private boolean closeIfIdle(Connection connection) {
+        synchronized (this) {
+            if (this.connection != connection || !pending.isEmpty()) {
+                return false;
+            }
+            this.connection = null;
+        }
+        logger.debug("closing idle session with server");
+        connection.close();
+        return true;
+    }
+
+    private void connectionFailed(Connection connection, IOException cause) {
+        synchronized (this) {
+            if (this.connection == connection) {
+                this.connection = null;
+                failPending("lost session with server: " + cause);
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Fails all outstanding requests. Must be called while holding the lock
+     * of this session.
+     */
+    private void failPending(String message) {
+        for (Request request : pending.values()) {
+            request.error = new IOException(message);
+        }
+        pending.clear();
+        notifyAll();
+    }
+
+    void end() {
+        Connection connection;
+        synchronized (this) {
+            ended = true;
+            connection = this.connection;
+            this.connection = null;
+            failPending("session with server ended");
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
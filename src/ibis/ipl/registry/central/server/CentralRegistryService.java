@@ -13,7 +13,9 @@ import ibis.smartsockets.virtual.VirtualSocketFactory;
 import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
@@ -51,6 +53,9 @@ public final class CentralRegistryService extends Thread implements Service,
 
     private final boolean printErrors;
 
+    // directory with a journal per pool, null if pools are not journaled
+    private final File journalDirectory;
+
     private ServerConnectionHandler handler;
 
     private boolean stopped = false;
@@ -82,8 +87,19 @@ public final class CentralRegistryService extends Thread implements Service,
 
         pools = new TreeMap<String, Pool>();
 
+        String journal = typedProperties
+                .getProperty(RegistryProperties.SERVER_JOURNAL);
+        if (journal == null) {
+            journalDirectory = null;
+        } else {
+            journalDirectory = new File(journal);
+            restorePools();
+        }
+
         // start handling connections
-        handler = new ServerConnectionHandler(this, socketFactory, policy);
+        handler = new ServerConnectionHandler(this, socketFactory, policy,
+                typedProperties
+                        .getIntProperty(RegistryProperties.SERVER_MAX_SESSIONS));
 
         ThreadPool.createNew(this, "Central Registry Service");
 
@@ -91,6 +107,47 @@ public final class CentralRegistryService extends Thread implements Service,
                 + Protocol.VIRTUAL_PORT);
     }
 
+    /**
+     * Restores all pools journaled by a previous run of the server.
+     */
+    private void restorePools() {
+        File[] directories = journalDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+
+        for (File directory : directories) {
+            if (!EventJournal.exists(directory)) {
+                continue;
+            }
+            try {
+                Pool pool = Pool.restore(directory, socketFactory,
+                        printEvents, printErrors);
+                pools.put(pool.getName(), pool);
+            } catch (IOException e) {
+                logger.error("could not restore pool from " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty journal for a new pool, or returns null if pools are
+     * not journaled (or the journal cannot be created).
+     */
+    private EventJournal createJournal(String poolName) {
+        if (journalDirectory == null) {
+            return null;
+        }
+        try {
+            return EventJournal.create(new File(journalDirectory, URLEncoder
+                    .encode(poolName, "UTF-8")));
+        } catch (IOException e) {
+            logger.error("could not create journal for pool \"" + poolName
+                    + "\", pool will not survive a restart of the server", e);
+            return null;
+        }
+    }
+
     synchronized Pool getPool(String poolName) {
         return pools.get(poolName);
     }
@@ -109,7 +166,7 @@ public final class CentralRegistryService extends Thread implements Service,
             long heartbeatInterval, long eventPushInterval, boolean gossip,
             long gossipInterval, boolean adaptGossipInterval, boolean tree,
             boolean closedWorld, int poolSize, boolean keepStatistics,
-            long statisticsInterval, boolean purgeHistory,
+            long statisticsInterval, boolean purgeHistory, double phiThreshold,
             String implementationVersion) throws IOException {
         Pool result = getPool(poolName);
 
@@ -120,7 +177,7 @@ public final class CentralRegistryService extends Thread implements Service,
                     gossipInterval, adaptGossipInterval, tree, closedWorld,
                     poolSize, keepStatistics, statisticsInterval,
                     implementationVersion, printEvents, printErrors,
-                    purgeHistory);
+                    purgeHistory, phiThreshold, createJournal(poolName));
             pools.put(poolName, result);
         }
 
@@ -153,6 +210,11 @@ public final class CentralRegistryService extends Thread implements Service,
         stopped = true;
         notifyAll();
         handler.end();
+
+        // pools still running are restored when the server restarts
+        for (Pool pool : pools.values()) {
+            pool.closeJournal();
+        }
     }
 
     public String toString() {
@@ -0,0 +1,281 @@
+package ibis.ipl.registry.central.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of a pool, kept in a directory of its own, so the pool
+ * can be restored after the server restarts. The directory holds three files:
+ * the configuration of the pool, a snapshot of its state, and a journal of all
+ * changes since that snapshot.
+ *
+ * The journal is a memory-mapped file of records of the form [int length][byte
+ * type][data], each followed by a length of 0 marking the end. A record is
+ * written before its length, so a record is either completely there or not at
+ * all, even if the server dies while writing it. Writing a snapshot clears the
+ * journal. Records are only appended while holding the lock of the pool, so
+ * the journal itself is not thread safe.
+ */
+final class EventJournal {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventJournal.class);
+
+    static final byte RECORD_EVENT = 1;
+
+    static final byte RECORD_SEQUENCE_NUMBER = 2;
+
+    // size by which the mapped journal grows
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String CONFIG = "config";
+
+    private static final String SNAPSHOT = "snapshot";
+
+    private static final String JOURNAL = "journal";
+
+    /** A record read back from the journal. */
+    static final class Record {
+        final byte type;
+
+        final byte[] data;
+
+        Record(byte type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        DataInputStream in() {
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+    }
+
+    private final File directory;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    // number of records since the last snapshot
+    private int records = 0;
+
+    /**
+     * Opens the journal in the given directory, creating the directory if
+     * needed. New records are appended after the existing ones.
+     */
+    EventJournal(File directory) throws IOException {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create journal directory "
+                    + directory);
+        }
+
+        file = new RandomAccessFile(new File(directory, JOURNAL), "rw");
+        channel = file.getChannel();
+
+        long size = Math.max(channel.size(), SEGMENT_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        // skip existing records
+        while (true) {
+            int position = buffer.position();
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.limit() - 4) {
+                break;
+            }
+            buffer.position(position + 4 + length);
+            records++;
+        }
+    }
+
+    /**
+     * Creates a new, empty journal in the given directory, removing any old
+     * journal there.
+     */
+    static EventJournal create(File directory) throws IOException {
+        for (String name : new String[] { CONFIG, SNAPSHOT, JOURNAL }) {
+            new File(directory, name).delete();
+        }
+        return new EventJournal(directory);
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    static boolean exists(File directory) {
+        return new File(directory, CONFIG).isFile();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        // write a new file, then replace the old one
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // some platforms do not replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not replace " + file);
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] result = new byte[(int) file.length()];
+            in.readFully(result);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    void writeConfig(byte[] config) throws IOException {
+        write(new File(directory, CONFIG), config);
+    }
+
+    byte[] readConfig() throws IOException {
+        return read(new File(directory, CONFIG));
+    }
+
+    /**
+     * Returns the last snapshot, or null if there is none.
+     */
+    byte[] readSnapshot() throws IOException {
+        return read(new File(directory, SNAPSHOT));
+    }
+
+    /**
+     * Returns all records written since the last snapshot.
+     */
+    List<Record> readRecords() {
+        ArrayList<Record> result = new ArrayList<Record>();
+
+        int position = 0;
+        while (true) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.limit() - 4) {
+                return result;
+            }
+            byte type = buffer.get(position + 4);
+            byte[] data = new byte[length - 1];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = buffer.get(position + 5 + i);
+            }
+            result.add(new Record(type, data));
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Number of records written since the last snapshot.
+     */
+    int size() {
+        return records;
+    }
+
+    /**
+     * Appends a record. The record is written to the mapped file, and will
+     * survive a crash of the server process, but not necessarily of the
+     * machine.
+     */
+    void append(byte type, byte[] data) throws IOException {
+        int length = data.length + 1;
+        int position = buffer.position();
+
+        // room for the length, the record and the end marker
+        if (position + 4 + length + 4 > buffer.limit()) {
+            long size = buffer.limit();
+            while (position + 4 + length + 4 > size) {
+                size += SEGMENT_SIZE;
+            }
+            logger.debug("growing journal in " + directory + " to " + size
+                    + " bytes");
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(position);
+        }
+
+        buffer.put(position + 4, type);
+        for (int i = 0; i < data.length; i++) {
+            buffer.put(position + 5 + i, data[i]);
+        }
+        buffer.putInt(position + 4 + length, 0);
+        // write the length last: it makes the record valid
+        buffer.putInt(position, length);
+
+        buffer.position(position + 4 + length);
+        records++;
+    }
+
+    /**
+     * Replaces the snapshot, and clears the journal.
+     */
+    void writeSnapshot(byte[] snapshot) throws IOException {
+        // make sure all records are on disk before the snapshot replaces them,
+        // in case the snapshot itself does not make it
+        buffer.force();
+
+        write(new File(directory, SNAPSHOT), snapshot);
+
+        buffer.putInt(0, 0);
+        buffer.position(0);
+        buffer.force();
+        records = 0;
+    }
+
+    /**
+     * Writes all records to disk.
+     */
+    void sync() {
+        buffer.force();
+    }
+
+    void close() {
+        try {
+            buffer.force();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            logger.debug("error on closing journal", e);
+        }
+    }
+
+    /**
+     * Closes the journal, and removes all of its files. Used when a pool has
+     * ended.
+     */
+    void delete() {
+        close();
+        for (String name : new String[] { CONFIG, SNAPSHOT, JOURNAL }) {
+            new File(directory, name).delete();
+        }
+        if (!directory.delete()) {
+            logger.warn("could not remove journal directory " + directory);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ibis.ipl.registry.central.server;
+
+import ibis.ipl.registry.central.Event;
+
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of the events of a pool. Events are added in order of their
+ * time, without gaps, by one thread at a time (the pool holds its lock while
+ * adding). Readers do not lock at all: they read the current view of the log,
+ * which is never changed once published. Adding an event fills a slot beyond
+ * the end of all published views, so views can share their array.
+ */
+final class EventLog {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventLog.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Immutable view of the log: the first "size" events of the array, the
+     * first of which has time "first".
+     */
+    private static final class View {
+        final Event[] events;
+
+        final int size;
+
+        final int first;
+
+        View(Event[] events, int size, int first) {
+            this.events = events;
+            this.size = size;
+            this.first = first;
+        }
+    }
+
+    private volatile View view = new View(new Event[INITIAL_CAPACITY], 0, 0);
+
+    /**
+     * Adds an event. Its time must be the time of the last event plus one.
+     * Only one thread may add events (or set the minimum) at a time.
+     */
+    void add(Event event) {
+        View current = view;
+
+        if (event.getTime() != current.first + current.size) {
+            throw new IllegalArgumentException("event " + event
+                    + " out of order, expected time "
+                    + (current.first + current.size));
+        }
+
+        Event[] events = current.events;
+        if (current.size == events.length) {
+            events = new Event[events.length * 2];
+            System.arraycopy(current.events, 0, events, 0, current.size);
+        }
+        events[current.size] = event;
+
+        view = new View(events, current.size + 1, current.first);
+    }
+
+    /**
+     * Returns all events from the given time onwards.
+     */
+    Event[] getList(int start) {
+        View current = view;
+
+        int from = Math.max(start - current.first, 0);
+        if (from >= current.size) {
+            return new Event[0];
+        }
+
+        Event[] result = new Event[current.size - from];
+        System.arraycopy(current.events, from, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns all signal events with a time in the given range (inclusive).
+     */
+    Event[] getSignalEvents(int from, int to) {
+        View current = view;
+        ArrayList<Event> result = new ArrayList<Event>();
+
+        int start = Math.max(from - current.first, 0);
+        int end = Math.min(to - current.first + 1, current.size);
+        for (int i = start; i < end; i++) {
+            if (current.events[i].getType() == Event.SIGNAL) {
+                result.add(current.events[i]);
+            }
+        }
+
+        return result.toArray(new Event[0]);
+    }
+
+    /**
+     * Removes all events before the given time. If the log holds no events
+     * from that time, the next event added must have the given time. Only one
+     * thread may add events (or set the minimum) at a time.
+     */
+    void setMinimum(int time) {
+        View current = view;
+
+        if (time <= current.first) {
+            return;
+        }
+        int remove = Math.min(time - current.first, current.size);
+        logger.debug("purging upto " + time);
+
+        int size = current.size - remove;
+        Event[] events = new Event[Math.max(size * 2, INITIAL_CAPACITY)];
+        System.arraycopy(current.events, remove, events, 0, size);
+
+        view = new View(events, size, time);
+    }
+}
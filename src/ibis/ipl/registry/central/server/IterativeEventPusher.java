@@ -17,6 +17,14 @@ final class IterativeEventPusher implements Runnable {
 
     private static final int THREADS = 25;
 
+    // after a new event, wait until no new events arrived for this long, so
+    // events that arrive close together (such as the joins at the start of
+    // a large job) are pushed in a single round.
+    private static final long BATCH_QUIET_TIME = 20;
+
+    // maximum time to wait for more events before pushing
+    private static final long BATCH_MAX_DELAY = 250;
+
     private class WorkQ {
         private List<Member> q;
 
@@ -30,6 +38,15 @@ final class IterativeEventPusher implements Runnable {
             count = this.q.size();
         }
 
+        /**
+         * Adds more work to this queue, while it is being processed.
+         */
+        synchronized void add(Member[] work) {
+            q.addAll(Arrays.asList(work));
+
+            count += work.length;
+        }
+
         synchronized Member next() {
             if (q.isEmpty()) {
                 return null;
@@ -78,7 +95,15 @@ final class IterativeEventPusher implements Runnable {
 
                 logger.debug("pushing to " + work);
 
-                pool.push(work, false, useTree);
+                if (!pool.push(work, false, useTree) && useTree) {
+                    // repair the tree: the children of this member get the
+                    // events directly, and the member itself is checked.
+                    Member[] orphans = pool.getChildren(work.getIbis());
+                    logger.debug("could not reach " + work + ", pushing to "
+                            + orphans.length + " children instead");
+                    pool.maybeDead(work.getIbis());
+                    workQ.add(orphans);
+                }
                 workQ.doneJob();
                 logger.debug("done pushing to " + work);
             }
@@ -106,6 +131,32 @@ final class IterativeEventPusher implements Runnable {
         ThreadPool.createNew(this, "event pusher scheduler thread");
     }
 
+    /**
+     * Waits until no new events were added for {@link #BATCH_QUIET_TIME}
+     * milliseconds, or {@link #BATCH_MAX_DELAY} milliseconds have passed.
+     */
+    private void waitForMoreEvents() {
+        long deadline = System.currentTimeMillis() + BATCH_MAX_DELAY;
+        int eventTime = pool.getEventTime();
+
+        while (!pool.hasEnded()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+
+            pool.waitForEventTime(eventTime + 1, Math.min(BATCH_QUIET_TIME,
+                    remaining));
+
+            int newEventTime = pool.getEventTime();
+            if (newEventTime == eventTime) {
+                // no new events, push now
+                return;
+            }
+            eventTime = newEventTime;
+        }
+    }
+
     public void run() {
         while (!pool.hasEnded()) {
             int eventTime = pool.getEventTime();
@@ -152,6 +203,7 @@ final class IterativeEventPusher implements Runnable {
 
             if (eventTriggersPush) {
                 pool.waitForEventTime(eventTime + 1, timeout);
+                waitForMoreEvents();
             } else {
                 // wait for the timeout, or until the pool ends
                 pool.waitForEventTime(Integer.MAX_VALUE, timeout);
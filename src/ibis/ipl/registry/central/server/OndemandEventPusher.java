@@ -6,30 +6,54 @@ import ibis.util.ThreadPool;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+/**
+ * Pushes events to specific members, as soon as possible. Up to
+ * {@link #THREADS} pushes are done in parallel, so one slow member does not
+ * delay the pushes to the members behind it.
+ */
 public class OndemandEventPusher implements Runnable {
 
+    private static final int THREADS = 10;
+
     private final Pool pool;
 
     private final Set<Member> q;
 
+    private int threads = 0;
+
+    private boolean ended = false;
+
     public OndemandEventPusher(Pool pool) {
         this.pool = pool;
         q = new LinkedHashSet<Member>();
-
-        ThreadPool.createNew(this, "Pusher");
     }
 
     public synchronized void enqueue(Member member) {
+        if (ended) {
+            return;
+        }
+
         q.add(member);
+
+        if (threads < THREADS) {
+            threads++;
+            ThreadPool.createNew(this, "Pusher");
+        }
     }
-    
-    public synchronized Member dequeue() {
-        while (q.isEmpty()) {
-            try {
-                wait(1000);
-            } catch (InterruptedException e) {
-                // /IGNORE
-            }
+
+    /**
+     * Pushes to members already queued are still done, new members are
+     * ignored.
+     */
+    public synchronized void end() {
+        ended = true;
+    }
+
+    private synchronized Member dequeue() {
+        if (q.isEmpty()) {
+            // this thread is done
+            threads--;
+            return null;
         }
         Member result = q.iterator().next();
         q.remove(result);
@@ -38,12 +62,10 @@ public class OndemandEventPusher implements Runnable {
     }
 
     public void run() {
-
         while (true) {
             Member next = dequeue();
 
             if (next == null) {
-                // q empty, pool ended
                 return;
             }
 
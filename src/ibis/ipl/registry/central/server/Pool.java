@@ -2,10 +2,12 @@ package ibis.ipl.registry.central.server;
 
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.impl.Location;
+import ibis.ipl.registry.FailureDetector;
+import ibis.ipl.registry.central.CompactInputStream;
+import ibis.ipl.registry.central.CompactOutputStream;
 import ibis.ipl.registry.central.Election;
 import ibis.ipl.registry.central.ElectionSet;
 import ibis.ipl.registry.central.Event;
-import ibis.ipl.registry.central.EventList;
 import ibis.ipl.registry.central.ListMemberSet;
 import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.MemberSet;
@@ -16,14 +18,21 @@ import ibis.ipl.support.Connection;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
 import ibis.util.ThreadPool;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,12 +48,15 @@ final class Pool implements Runnable {
     // called by the user
     private static final long RECENTLY_SEEN_THRESHOLD = 1000;
 
+    // number of journal records after which a new snapshot is written
+    private static final int SNAPSHOT_INTERVAL = 10000;
+
     private static final Logger logger = LoggerFactory.getLogger(Pool.class);
 
     private final VirtualSocketFactory socketFactory;
 
     // list of all joins, leaves, elections, etc.
-    private final EventList events;
+    private final EventLog events;
 
     private final boolean peerBootstrap;
 
@@ -54,16 +66,32 @@ final class Pool implements Runnable {
 
     private final long heartbeatInterval;
 
-    private int currentEventTime;
+    // only changed while holding the lock of this pool, but read without it
+    private volatile int currentEventTime;
 
-    private int minEventTime;
+    private volatile int minEventTime;
 
     private final ElectionSet elections;
 
     private final MemberSet members;
 
+    // copy of the members, replaced whenever the members change, so members
+    // can be read without locking the pool
+    private volatile MemberSnapshot snapshot = new MemberSnapshot(
+            new Member[0]);
+
+    private final Random random = new Random();
+
+    // joins and leaves waiting to be committed, see commit()
+    private final LinkedList<Change> pendingChanges = new LinkedList<Change>();
+
+    // true while a batch of joins and leaves is committed
+    private boolean committing = false;
+
     private final OndemandEventPusher pusher;
 
+    private final PushMonitor pushMonitor;
+
     private final String name;
 
     private final String implementationVersion;
@@ -79,10 +107,16 @@ final class Pool implements Runnable {
 
     private final boolean purgeHistory;
 
+    // suspicion level a member must reach before it is declared dead
+    private final double phiThreshold;
+
     // statistics are only kept on the request of the user
 
     private final Statistics statistics;
 
+    // journal of all changes, null if this pool is not journaled
+    private EventJournal journal;
+
     // simple statistics which are always kept,
     // so the server can print them if so requested
     private final int[] eventStats;
@@ -91,7 +125,7 @@ final class Pool implements Runnable {
 
     private int nextID;
 
-    private boolean ended = false;
+    private volatile boolean ended = false;
 
     private boolean closed = false;
 
@@ -101,13 +135,42 @@ final class Pool implements Runnable {
 
     private Event terminateEvent = null;
 
+    /**
+     * Immutable copy of the members of this pool.
+     */
+    private static final class MemberSnapshot {
+        final Member[] members;
+
+        final HashSet<String> ids;
+
+        MemberSnapshot(Member[] members) {
+            this.members = members;
+            ids = new HashSet<String>();
+            for (Member member : members) {
+                ids.add(member.getIbis().getID());
+            }
+        }
+    }
+
+    /**
+     * A join or leave, waiting to be committed to this pool.
+     */
+    private abstract class Change {
+        boolean done = false;
+
+        Exception error = null;
+
+        abstract void apply() throws Exception;
+    }
+
     Pool(String name, VirtualSocketFactory socketFactory,
             boolean peerBootstrap, long heartbeatInterval,
             long eventPushInterval, boolean gossip, long gossipInterval,
             boolean adaptGossipInterval, boolean tree, boolean closedWorld,
             int poolSize, boolean keepStatistics, long statisticsInterval,
             String implementationVersion, boolean printEvents,
-            boolean printErrors, boolean purgeHistory) {
+            boolean printErrors, boolean purgeHistory, double phiThreshold,
+            EventJournal journal) throws IOException {
         print("creating new pool: \"" + name + "\"");
 
         this.name = name;
@@ -122,6 +185,7 @@ final class Pool implements Runnable {
         this.printEvents = printEvents;
         this.printErrors = printErrors;
         this.purgeHistory = purgeHistory;
+        this.phiThreshold = phiThreshold;
 
         if (keepStatistics) {
             statistics = new Statistics(Protocol.OPCODE_NAMES);
@@ -136,16 +200,41 @@ final class Pool implements Runnable {
         nextID = 0;
         sequencers = new HashMap<String, Integer>();
 
-        events = new EventList();
+        events = new EventLog();
         eventStats = new int[Event.NR_OF_TYPES];
         elections = new ElectionSet();
 
-        if (gossip) {
+        if (tree && !gossip) {
+            members = new TreeMemberSet();
+        } else {
             members = new ListMemberSet();
+        }
+
+        this.journal = journal;
+        if (journal != null && journal.readConfig() != null) {
+            restore(journal.readSnapshot(), journal.readRecords());
+            // compact the journal into a fresh snapshot
+            journal.writeSnapshot(createSnapshot());
+            print("restored pool \"" + name + "\" at event time "
+                    + currentEventTime + " with " + members.size()
+                    + " members");
+        } else if (journal != null) {
+            try {
+                journal.writeConfig(createConfig(name, peerBootstrap,
+                        heartbeatInterval, eventPushInterval, gossip,
+                        gossipInterval, adaptGossipInterval, tree, closedWorld,
+                        poolSize, keepStatistics, statisticsInterval,
+                        implementationVersion, purgeHistory, phiThreshold));
+                journal.writeSnapshot(createSnapshot());
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+
+        if (gossip) {
             new IterativeEventPusher(this, eventPushInterval, false, false);
             new RandomEventPusher(this, gossipInterval, adaptGossipInterval);
         } else if (tree) {
-            members = new TreeMemberSet();
             // on new event send to children in tree
             // also check for needed updates every second.
             new IterativeEventPusher(this, 1000, true, true);
@@ -153,26 +242,294 @@ final class Pool implements Runnable {
             // once in a while forward to everyone
             new IterativeEventPusher(this, eventPushInterval, false, false);
         } else { // central
-            members = new ListMemberSet();
             new IterativeEventPusher(this, eventPushInterval, true, false);
         }
 
+        pushMonitor = new PushMonitor();
         pusher = new OndemandEventPusher(this);
 
         ThreadPool.createNew(this, "pool pinger thread");
 
     }
 
+    /**
+     * Restores a pool from the journal in the given directory.
+     */
+    static Pool restore(File directory, VirtualSocketFactory socketFactory,
+            boolean printEvents, boolean printErrors) throws IOException {
+        EventJournal journal = new EventJournal(directory);
+        try {
+            byte[] config = journal.readConfig();
+            if (config == null) {
+                throw new IOException("no pool configuration in " + directory);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    config));
+
+            return new Pool(in.readUTF(), socketFactory, in.readBoolean(), in
+                    .readLong(), in.readLong(), in.readBoolean(),
+                    in.readLong(), in.readBoolean(), in.readBoolean(), in
+                            .readBoolean(), in.readInt(), in.readBoolean(), in
+                            .readLong(), in.readUTF(), printEvents,
+                    printErrors, in.readBoolean(), in.readDouble(), journal);
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Configuration of a pool, in the order read by
+     * {@link #restore(File, VirtualSocketFactory, boolean, boolean)}.
+     */
+    private static byte[] createConfig(String name, boolean peerBootstrap,
+            long heartbeatInterval, long eventPushInterval, boolean gossip,
+            long gossipInterval, boolean adaptGossipInterval, boolean tree,
+            boolean closedWorld, int poolSize, boolean keepStatistics,
+            long statisticsInterval, String implementationVersion,
+            boolean purgeHistory, double phiThreshold) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(name);
+        out.writeBoolean(peerBootstrap);
+        out.writeLong(heartbeatInterval);
+        out.writeLong(eventPushInterval);
+        out.writeBoolean(gossip);
+        out.writeLong(gossipInterval);
+        out.writeBoolean(adaptGossipInterval);
+        out.writeBoolean(tree);
+        out.writeBoolean(closedWorld);
+        out.writeInt(poolSize);
+        out.writeBoolean(keepStatistics);
+        out.writeLong(statisticsInterval);
+        out.writeUTF(implementationVersion);
+        out.writeBoolean(purgeHistory);
+        out.writeDouble(phiThreshold);
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the complete state of this pool, to be restored with
+     * {@link #restore(byte[], List)}. Must be called while holding the lock
+     * of this pool, or before it is in use.
+     */
+    private byte[] createSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactOutputStream out = new CompactOutputStream(bytes);
+
+        out.writeInt(nextID);
+
+        members.writeTo(out);
+        elections.writeTo(out);
+
+        out.writeInt(sequencers.size());
+        for (Map.Entry<String, Integer> entry : sequencers.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+
+        out.writeBoolean(closed);
+        if (closed) {
+            closeEvent.writeTo(out);
+        }
+        out.writeBoolean(terminated);
+        if (terminated) {
+            terminateEvent.writeTo(out);
+        }
+
+        for (int count : eventStats) {
+            out.writeInt(count);
+        }
+
+        // events still needed by some member
+        out.writeInt(minEventTime);
+        Event[] history = events.getList(minEventTime);
+        out.writeInt(history.length);
+        for (Event event : history) {
+            event.writeTo(out);
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores the state of this pool from a snapshot (if any) and the
+     * records journaled since. Called from the constructor.
+     */
+    private void restore(byte[] state, List<EventJournal.Record> records)
+            throws IOException {
+        if (state != null) {
+            CompactInputStream in = new CompactInputStream(
+                    new ByteArrayInputStream(state));
+
+            nextID = in.readInt();
+
+            members.init(in);
+            elections.init(in);
+
+            int nrOfSequencers = in.readInt();
+            for (int i = 0; i < nrOfSequencers; i++) {
+                sequencers.put(in.readUTF(), in.readInt());
+            }
+
+            closed = in.readBoolean();
+            if (closed) {
+                closeEvent = new Event(in);
+            }
+            terminated = in.readBoolean();
+            if (terminated) {
+                terminateEvent = new Event(in);
+            }
+
+            for (int i = 0; i < eventStats.length; i++) {
+                eventStats[i] = in.readInt();
+            }
+
+            minEventTime = in.readInt();
+            currentEventTime = minEventTime;
+            events.setMinimum(minEventTime);
+            int nrOfEvents = in.readInt();
+            for (int i = 0; i < nrOfEvents; i++) {
+                events.add(new Event(in));
+                currentEventTime++;
+            }
+        }
+
+        for (EventJournal.Record record : records) {
+            DataInputStream in = record.in();
+            switch (record.type) {
+            case EventJournal.RECORD_EVENT:
+                replay(new Event(in));
+                break;
+            case EventJournal.RECORD_SEQUENCE_NUMBER:
+                String sequencer = in.readUTF();
+                int value = in.readInt();
+                Integer current = sequencers.get(sequencer);
+                if (current == null || current < value) {
+                    sequencers.put(sequencer, value);
+                }
+                break;
+            default:
+                throw new IOException("unknown journal record type "
+                        + record.type);
+            }
+        }
+
+        // members have to show signs of life again before they are suspected
+        for (Member member : members.asArray()) {
+            member.setCurrentTime(minEventTime);
+            member.setFailureDetector(new FailureDetector(
+                    heartbeatInterval / 2));
+            member.seen();
+        }
+        snapshot = new MemberSnapshot(members.asArray());
+    }
+
+    /**
+     * Applies a journaled event. Events already in the snapshot are skipped.
+     */
+    private void replay(Event event) throws IOException {
+        if (event.getTime() < currentEventTime) {
+            return;
+        }
+        if (event.getTime() != currentEventTime) {
+            throw new IOException("journal misses events before " + event);
+        }
+
+        events.add(event);
+        eventStats[event.getType()]++;
+        currentEventTime++;
+
+        switch (event.getType()) {
+        case Event.JOIN:
+            members.add(new Member(event.getIbis(), event));
+            nextID = Math.max(nextID,
+                    Integer.parseInt(event.getIbis().getID()) + 1);
+            break;
+        case Event.LEAVE:
+        case Event.DIED:
+            members.remove(event.getIbis());
+            break;
+        case Event.ELECT:
+            elections.put(new Election(event));
+            break;
+        case Event.UN_ELECT:
+            elections.remove(event.getDescription());
+            break;
+        case Event.POOL_CLOSED:
+            closed = true;
+            closeEvent = event;
+            break;
+        case Event.POOL_TERMINATED:
+            terminated = true;
+            terminateEvent = event;
+            break;
+        }
+    }
+
+    /**
+     * Appends a record to the journal of this pool, if any. Must be called
+     * while holding the lock of this pool.
+     */
+    private void journal(byte type, byte[] data) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(type, data);
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /**
+     * Replaces the journal of this pool with a snapshot, once it has grown
+     * large. Must be called while holding the lock of this pool, with no
+     * change in progress.
+     */
+    private void maybeWriteSnapshot() {
+        if (journal == null || journal.size() < SNAPSHOT_INTERVAL) {
+            return;
+        }
+        try {
+            journal.writeSnapshot(createSnapshot());
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void journalFailed(IOException e) {
+        logger.error("could not write journal of pool \"" + name
+                + "\", pool will not survive a restart of the server", e);
+        journal.close();
+        journal = null;
+    }
+
+    /**
+     * Writes all journaled changes to disk, and closes the journal. Called
+     * when the server stops, leaving the pool to be restored later.
+     */
+    synchronized void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
     private static void print(String message) {
         System.err.printf("%tT Central Registry: %s\n", System
                 .currentTimeMillis(), message);
     }
 
-    synchronized int getEventTime() {
+    int getEventTime() {
         return currentEventTime;
     }
 
-    synchronized int getMinEventTime() {
+    int getMinEventTime() {
         return minEventTime;
     }
 
@@ -181,11 +538,24 @@ final class Pool implements Runnable {
         Event event = new Event(currentEventTime, type, description, ibis,
                 ibisses);
         logger.debug("adding new event: " + event);
+        if (journal != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                DataOutputStream out = new DataOutputStream(bytes);
+                event.writeTo(out);
+                out.close();
+            } catch (IOException e) {
+                // IGNORE, cannot happen with an array stream
+            }
+            journal(EventJournal.RECORD_EVENT, bytes.toByteArray());
+        }
         events.add(event);
         eventStats[type]++;
 
         currentEventTime++;
-        notifyAll();
+        if (!committing) {
+            notifyAll();
+        }
 
         return event;
     }
@@ -216,14 +586,14 @@ final class Pool implements Runnable {
         }
     }
 
-    synchronized int getSize() {
-        return members.size();
+    int getSize() {
+        return snapshot.members.length;
     }
 
-    synchronized ibis.ipl.Location[] getLocations() {
+    ibis.ipl.Location[] getLocations() {
         HashSet<ibis.ipl.Location> locations = new HashSet<ibis.ipl.Location>();
 
-        for (Member member : members.asArray()) {
+        for (Member member : snapshot.members) {
             locations.add(member.getIbis().location());
         }
 
@@ -243,7 +613,7 @@ final class Pool implements Runnable {
      * 
      * @see ibis.ipl.impl.registry.central.SuperPool#ended()
      */
-    synchronized boolean hasEnded() {
+    boolean hasEnded() {
         return ended;
     }
 
@@ -257,7 +627,13 @@ final class Pool implements Runnable {
 
     synchronized void end() {
         ended = true;
-        pusher.enqueue(null);
+        pusher.end();
+        if (journal != null) {
+            // nothing left to restore
+            journal.delete();
+            journal = null;
+        }
+        logger.info("pool \"" + name + "\" event pushes: " + pushMonitor);
         if (statistics != null) {
             statistics.write();
             statistics.end();
@@ -280,7 +656,77 @@ final class Pool implements Runnable {
      * @see ibis.ipl.impl.registry.central.SuperPool#join(byte[], byte[],
      * ibis.ipl.impl.Location)
      */
-    synchronized Member join(byte[] implementationData, byte[] clientAddress,
+    Member join(final byte[] implementationData, final byte[] clientAddress,
+            final Location location, final String implementationVersion,
+            final byte[] applicationTag) throws IOException {
+        final Member[] result = new Member[1];
+
+        try {
+            commit(new Change() {
+                void apply() throws Exception {
+                    result[0] = doJoin(implementationData, clientAddress,
+                            location, implementationVersion, applicationTag);
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            IOException exception = new IOException("join failed: " + e);
+            exception.initCause(e);
+            throw exception;
+        }
+
+        return result[0];
+    }
+
+    /**
+     * Commits a join or leave. Joins and leaves that arrive while another
+     * batch is committed are queued, and committed together by the first
+     * thread to get the lock of this pool: they are assigned consecutive event
+     * times in one step, waiters are woken up once, and the snapshot of the
+     * members is replaced once. The event pushers then see all of their events
+     * at once.
+     */
+    private void commit(Change change) throws Exception {
+        synchronized (pendingChanges) {
+            pendingChanges.add(change);
+        }
+
+        synchronized (this) {
+            if (!change.done) {
+                Change[] batch;
+                synchronized (pendingChanges) {
+                    batch = pendingChanges.toArray(new Change[0]);
+                    pendingChanges.clear();
+                }
+
+                logger.debug("committing " + batch.length
+                        + " joins and leaves");
+
+                committing = true;
+                try {
+                    for (Change next : batch) {
+                        try {
+                            next.apply();
+                        } catch (Exception e) {
+                            next.error = e;
+                        }
+                        next.done = true;
+                    }
+                } finally {
+                    committing = false;
+                    snapshot = new MemberSnapshot(members.asArray());
+                    notifyAll();
+                }
+            }
+        }
+
+        if (change.error != null) {
+            throw change.error;
+        }
+    }
+
+    private Member doJoin(byte[] implementationData, byte[] clientAddress,
             Location location, String implementationVersion, byte[] applicationTag) throws IOException {
         if (hasEnded()) {
             throw new IOException("Pool already ended");
@@ -309,7 +755,10 @@ final class Pool implements Runnable {
 
         Member member = new Member(identifier, event);
         member.setCurrentTime(getMinEventTime());
-        member.updateTime();
+        // clients send a heartbeat at a random time within the heartbeat
+        // interval after their last contact with the server
+        member.setFailureDetector(new FailureDetector(heartbeatInterval / 2));
+        member.seen();
 
         members.add(member);
 
@@ -361,11 +810,22 @@ final class Pool implements Runnable {
 
     }
 
-    public void writeState(DataOutputStream out, int joinTime)
+    /**
+     * Writes the state of this pool, for a member that joined at the given
+     * time. The state is written compactly, and also compressed if the
+     * receiver asked for it.
+     */
+    public void writeState(DataOutputStream out, int joinTime, boolean compress)
             throws IOException {
 
         ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(arrayOut);
+        CompactOutputStream dataOut;
+        if (compress) {
+            dataOut = new CompactOutputStream(new DeflaterOutputStream(
+                    arrayOut));
+        } else {
+            dataOut = new CompactOutputStream(arrayOut);
+        }
 
         // create byte array of data
         synchronized (this) {
@@ -391,13 +851,16 @@ final class Pool implements Runnable {
             }
         }
 
-        dataOut.flush();
+        // also finishes the compressed data, if any
+        dataOut.close();
         byte[] bytes = arrayOut.toByteArray();
 
+        out.writeBoolean(compress);
         out.writeInt(bytes.length);
         out.write(bytes);
 
-        logger.debug("pool state size = " + bytes.length);
+        logger.debug("pool state size = " + bytes.length + ", compressed = "
+                + compress);
     }
 
     /*
@@ -407,7 +870,15 @@ final class Pool implements Runnable {
      * ibis.ipl.impl.registry.central.SuperPool#leave(ibis.ipl.impl.IbisIdentifier
      * )
      */
-    synchronized void leave(IbisIdentifier identifier) throws Exception {
+    void leave(final IbisIdentifier identifier) throws Exception {
+        commit(new Change() {
+            void apply() throws Exception {
+                doLeave(identifier);
+            }
+        });
+    }
+
+    private void doLeave(IbisIdentifier identifier) throws Exception {
         if (members.remove(identifier) == null) {
             // May happen if it was declared dead before. So, no exception.
             // --Ceriel
@@ -416,6 +887,7 @@ final class Pool implements Runnable {
             logger.debug("unknown ibis " + identifier + " tried to leave");
             return;
         }
+        pushMonitor.remove(identifier);
         if (printEvents) {
             print(identifier + " left pool \"" + name + "\" now "
                     + members.size() + " members");
@@ -459,6 +931,8 @@ final class Pool implements Runnable {
             // member removed already
             return;
         }
+        snapshot = new MemberSnapshot(members.asArray());
+        pushMonitor.remove(identifier);
 
         if (printEvents) {
             if (printErrors) {
@@ -497,7 +971,7 @@ final class Pool implements Runnable {
         pusher.enqueue(member);
     }
 
-    synchronized Event[] getEvents(int startTime) {
+    Event[] getEvents(int startTime) {
         return events.getList(startTime);
     }
 
@@ -549,6 +1023,19 @@ final class Pool implements Runnable {
 
         sequencers.put(name, currentValue + 1);
 
+        if (journal != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(name);
+                out.writeInt(currentValue + 1);
+                out.close();
+            } catch (IOException e) {
+                // IGNORE, cannot happen with an array stream
+            }
+            journal(EventJournal.RECORD_SEQUENCE_NUMBER, bytes.toByteArray());
+        }
+
         return result;
     }
 
@@ -650,7 +1137,7 @@ final class Pool implements Runnable {
                 throw new Exception("ping ended up at wrong ibis");
             }
             logger.debug("ping to " + member + " successful");
-            member.updateTime();
+            member.seen();
             if (statistics != null) {
                 statistics
                         .add(Protocol.OPCODE_PING, System.currentTimeMillis()
@@ -663,6 +1150,20 @@ final class Pool implements Runnable {
             if (connection != null) {
                 connection.close();
             }
+
+            FailureDetector detector = member.getFailureDetector();
+            double phi = detector.phi();
+            if (phi < phiThreshold) {
+                // not silent long enough for this member to be sure it is
+                // dead, try again when it will be
+                long retry = Math.max(detector.suspectTime(phiThreshold),
+                        System.currentTimeMillis() + RECENTLY_SEEN_THRESHOLD);
+                logger.debug("could not reach " + member + ", but phi = "
+                        + phi + ", checking again in "
+                        + (retry - System.currentTimeMillis()) + " ms");
+                member.setTime(retry - heartbeatInterval);
+                return;
+            }
             dead(member.getIbis(), e);
         }
     }
@@ -676,8 +1177,10 @@ final class Pool implements Runnable {
      * @param force
      *            if true, events are always pushed, even if the pool has ended
      *            or the peer is no longer a member.
+     * @return false if the member is still in the pool, but could not be
+     *         reached (now or recently).
      */
-    void push(Member member, boolean force, boolean isBroadcast) {
+    boolean push(Member member, boolean force, boolean isBroadcast) {
         byte opcode;
 
         if (isBroadcast) {
@@ -689,14 +1192,19 @@ final class Pool implements Runnable {
         long start = System.currentTimeMillis();
         if (hasEnded()) {
             if (!force) {
-                return;
+                return true;
             }
         }
         if (!isMember(member)) {
             if (!force) {
-                return;
+                return true;
             }
         }
+        if (!force && !pushMonitor.mayPush(member.getIbis())) {
+            logger.debug("not pushing to " + member
+                    + ", backing off after failed push");
+            return false;
+        }
         if (force) {
             logger.debug("forced pushing entries to " + member);
         } else {
@@ -711,6 +1219,8 @@ final class Pool implements Runnable {
 
             connection = new Connection(member.getIbis(), CONNECT_TIMEOUT,
                     true, socketFactory, Protocol.VIRTUAL_PORT);
+            // do not let a slow member hold up this thread forever
+            connection.setTimeout(CONNECT_TIMEOUT);
 
             long connected = System.currentTimeMillis();
 
@@ -726,6 +1236,7 @@ final class Pool implements Runnable {
             logger.debug("waiting for info of peer " + member);
 
             boolean requestBootstrap = connection.in().readBoolean();
+            boolean compress = connection.in().readBoolean();
             int joinTime = connection.in().readInt();
             int requestedEventTime = connection.in().readInt();
 
@@ -737,7 +1248,7 @@ final class Pool implements Runnable {
 
             if (requestBootstrap) {
                 // peer requests bootstrap data
-                writeState(connection.out(), joinTime);
+                writeState(connection.out(), joinTime, compress);
             }
             long writtenState = System.currentTimeMillis();
 
@@ -748,17 +1259,19 @@ final class Pool implements Runnable {
 
             logger.debug("sending " + events.length + " entries to " + member);
 
-            connection.out().writeInt(events.length);
+            CompactOutputStream eventOut = new CompactOutputStream(connection
+                    .out());
+            eventOut.writeVarInt(events.length);
 
             for (int i = 0; i < events.length; i++) {
-                events[i].writeTo(connection.out());
+                events[i].writeTo(eventOut);
             }
 
             long writtenEvents = System.currentTimeMillis();
 
-            connection.out().writeInt(getMinEventTime());
+            eventOut.writeInt(getMinEventTime());
 
-            connection.out().flush();
+            eventOut.flush();
 
             long writtenAll = System.currentTimeMillis();
 
@@ -767,10 +1280,12 @@ final class Pool implements Runnable {
             long closedConnection = System.currentTimeMillis();
 
             logger.debug("connection to " + member + " closed");
-            member.updateTime();
+            member.seen();
 
             long done = System.currentTimeMillis();
 
+            pushMonitor.pushSucceeded(member.getIbis(), done - start);
+
             if (statistics != null) {
                 long end = System.currentTimeMillis();
 
@@ -795,15 +1310,17 @@ final class Pool implements Runnable {
                         + (done - closedConnection));
 
             }
-
+            return true;
         } catch (IOException e) {
             if (isMember(member)) {
+                pushMonitor.pushFailed(member.getIbis());
                 if (printErrors) {
                     print("cannot reach " + member + " to push events to");
                     // e.printStackTrace(System.err);
                 }
+                return false;
             }
-
+            return true;
         } finally {
             if (connection != null) {
                 connection.close();
@@ -851,24 +1368,46 @@ final class Pool implements Runnable {
         logger.debug("updating last seen time for " + member);
 
         if (member != null) {
-            member.updateTime();
+            member.seen();
         }
     }
 
-    synchronized Member[] getRandomMembers(int size) {
-        return members.getRandom(size);
+    Member[] getRandomMembers(int size) {
+        Member[] members = snapshot.members;
+
+        if (size >= members.length) {
+            return members.clone();
+        }
+
+        // pick a random subset by shuffling the start of a copy
+        Member[] copy = members.clone();
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(copy.length - i);
+            Member tmp = copy[i];
+            copy[i] = copy[j];
+            copy[j] = tmp;
+        }
+
+        Member[] result = new Member[size];
+        System.arraycopy(copy, 0, result, 0, size);
+        return result;
     }
 
-    synchronized Member getRandomMember() {
-        return members.getRandom();
+    Member getRandomMember() {
+        Member[] members = snapshot.members;
+
+        if (members.length == 0) {
+            return null;
+        }
+        return members[random.nextInt(members.length)];
     }
 
-    synchronized boolean isMember(Member member) {
-        return members.contains(member);
+    boolean isMember(Member member) {
+        return snapshot.ids.contains(member.getIbis().getID());
     }
 
-    synchronized Member[] getMembers() {
-        return members.asArray();
+    Member[] getMembers() {
+        return snapshot.members.clone();
     }
 
     /**
@@ -878,6 +1417,13 @@ final class Pool implements Runnable {
         return members.getRootChildren();
     }
 
+    /**
+     * Returns the children of the given member in the broadcast tree.
+     */
+    synchronized Member[] getChildren(IbisIdentifier ibis) {
+        return members.getChildren(ibis);
+    }
+
     public String toString() {
         return "Pool " + name + ": value = " + getSize() + ", event time = "
                 + getEventTime();
@@ -919,6 +1465,21 @@ final class Pool implements Runnable {
         result.put(name + ".ended", "" + "" + ended);
         result.put(name + ".terminated", "" + "" + terminated);
 
+        double maxPhi = 0;
+        int suspects = 0;
+        for (Member member : snapshot.members) {
+            FailureDetector detector = member.getFailureDetector();
+            if (detector != null) {
+                double phi = detector.phi();
+                maxPhi = Math.max(maxPhi, phi);
+                if (phi >= phiThreshold) {
+                    suspects++;
+                }
+            }
+        }
+        result.put(name + ".phi.max", String.format("%.2f", maxPhi));
+        result.put(name + ".suspects", "" + suspects);
+
         return result;
     }
 
@@ -927,6 +1488,8 @@ final class Pool implements Runnable {
      * 
      */
     synchronized void purgeHistory() {
+        maybeWriteSnapshot();
+
         if (!purgeHistory) {
             // do nothing, history purge disabled
             return;
@@ -0,0 +1,116 @@
+package ibis.ipl.registry.central.server;
+
+import ibis.ipl.impl.IbisIdentifier;
+
+import java.util.HashMap;
+
+/**
+ * Keeps track of event pushes to the members of a pool. Records the
+ * distribution of push latencies, and keeps a back-off per member for
+ * which pushes failed, so that a slow or dying member does not take up
+ * pusher threads in every round.
+ */
+final class PushMonitor {
+
+    // first back-off after a failed push
+    private static final long MIN_BACKOFF = 1000;
+
+    private static final long MAX_BACKOFF = 60000;
+
+    // latency buckets: < 1ms, < 2ms, < 4ms, ..., and the rest
+    private static final int NR_OF_BUCKETS = 18;
+
+    private static final class Backoff {
+        int failures = 0;
+
+        long until = 0;
+    }
+
+    private final HashMap<IbisIdentifier, Backoff> backoffs = new HashMap<IbisIdentifier, Backoff>();
+
+    private final long[] buckets = new long[NR_OF_BUCKETS];
+
+    private long pushes = 0;
+
+    private long failures = 0;
+
+    private long maxLatency = 0;
+
+    private static int bucket(long latency) {
+        int result = 0;
+        while (result < NR_OF_BUCKETS - 1 && (1L << result) <= latency) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns if a (not forced) push to the given member should be done now.
+     */
+    synchronized boolean mayPush(IbisIdentifier ibis) {
+        Backoff backoff = backoffs.get(ibis);
+
+        return backoff == null || System.currentTimeMillis() >= backoff.until;
+    }
+
+    synchronized void pushSucceeded(IbisIdentifier ibis, long latency) {
+        backoffs.remove(ibis);
+
+        pushes++;
+        buckets[bucket(latency)]++;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+    }
+
+    /**
+     * Records a failed push to a member, which is left alone for a while.
+     */
+    synchronized void pushFailed(IbisIdentifier ibis) {
+        failures++;
+
+        Backoff backoff = backoffs.get(ibis);
+        if (backoff == null) {
+            backoff = new Backoff();
+            backoffs.put(ibis, backoff);
+        }
+        backoff.failures++;
+
+        long time = MIN_BACKOFF << Math.min(backoff.failures - 1, 16);
+        backoff.until = System.currentTimeMillis()
+                + Math.min(time, MAX_BACKOFF);
+    }
+
+    /**
+     * Forgets about a member that is no longer part of the pool.
+     */
+    synchronized void remove(IbisIdentifier ibis) {
+        backoffs.remove(ibis);
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of push latencies, in
+     * milliseconds.
+     */
+    private long percentile(double fraction) {
+        long needed = (long) Math.ceil(pushes * fraction);
+        long seen = 0;
+        for (int i = 0; i < NR_OF_BUCKETS - 1; i++) {
+            seen += buckets[i];
+            if (seen >= needed) {
+                return 1L << i;
+            }
+        }
+        return maxLatency;
+    }
+
+    public synchronized String toString() {
+        if (pushes == 0) {
+            return "no successful pushes, " + failures + " failed";
+        }
+        return pushes + " pushes, " + failures + " failed, latency 50% < "
+                + percentile(0.5) + " ms, 90% < " + percentile(0.9)
+                + " ms, 99% < " + percentile(0.99) + " ms, max = "
+                + maxLatency + " ms";
+    }
+}
@@ -13,8 +13,13 @@ import ibis.smartsockets.virtual.VirtualServerSocket;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
 import ibis.util.ThreadPool;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.security.AccessControlException;
+import java.util.ArrayList;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,13 +42,19 @@ final class ServerConnectionHandler implements Runnable {
 
     private int maxNrOfThreads = 0;
 
+    // maximum number of sessions, each of which has a thread of its own
+    private final int maxSessions;
+
+    private final ArrayList<Connection> sessions = new ArrayList<Connection>();
+
     private ControlPolicy policy;
 
     ServerConnectionHandler(CentralRegistryService server,
-            VirtualSocketFactory connectionFactory, ControlPolicy policy)
-            throws IOException {
+            VirtualSocketFactory connectionFactory, ControlPolicy policy,
+            int maxSessions) throws IOException {
         this.server = server;
         this.socketFactory = connectionFactory;
+        this.maxSessions = maxSessions;
 
         serverSocket = socketFactory.createServerSocket(
                 Protocol.VIRTUAL_PORT, CONNECTION_BACKLOG, null);
@@ -99,6 +110,7 @@ final class ServerConnectionHandler implements Runnable {
         boolean keepStatistics = connection.in().readBoolean();
         long statisticsInterval = connection.in().readLong();
         boolean purgeHistory = connection.in().readBoolean();
+        double phiThreshold = connection.in().readDouble();
 
         length = connection.in().readInt();
         if (length < 0) {
@@ -133,7 +145,7 @@ final class ServerConnectionHandler implements Runnable {
         pool = server.getOrCreatePool(poolName, peerBootstrap,
                 heartbeatInterval, eventPushInterval, gossip, gossipInterval,
                 adaptGossipInterval, tree, closedWorld, poolSize,
-                keepStatistics, statisticsInterval, purgeHistory,
+                keepStatistics, statisticsInterval, purgeHistory, phiThreshold,
                 implementationVersion);
 
         // long poolRetrieved = System.currentTimeMillis();
@@ -310,6 +322,7 @@ final class ServerConnectionHandler implements Runnable {
     private Pool handleGetState(Connection connection) throws Exception {
         IbisIdentifier identifier = new IbisIdentifier(connection.in());
         int joinTime = connection.in().readInt();
+        boolean compress = connection.in().readBoolean();
 
         Pool pool = server.getPool(identifier.poolName());
 
@@ -319,7 +332,7 @@ final class ServerConnectionHandler implements Runnable {
         }
 
         connection.sendOKReply();
-        pool.writeState(connection.out(), joinTime);
+        pool.writeState(connection.out(), joinTime, compress);
         connection.out().flush();
         pool.gotHeartbeat(identifier);
         return pool;
@@ -414,23 +427,48 @@ final class ServerConnectionHandler implements Runnable {
         }
         long start = System.currentTimeMillis();
 
-        byte opcode = 0;
-        Pool pool = null;
+        byte opcode;
         try {
-            byte magic = connection.in().readByte();
+            opcode = readOpcode(connection);
+        } catch (IOException e) {
+            connection.closeWithError("Server: " + e.getMessage());
+            logger.error("error on handling connection", e);
+            threadEnded();
+            return;
+        }
 
-            if (magic != Protocol.MAGIC_BYTE) {
-                throw new IOException(
-                        "Invalid header byte in accepting connection");
-            }
+        if (opcode == Protocol.OPCODE_SESSION) {
+            // a session does not count as a connection being accepted
+            threadEnded();
+            handleSession(connection);
+            return;
+        }
 
-            opcode = connection.in().readByte();
+        handleRequest(connection, opcode, start);
+        threadEnded();
+    }
 
-            if (logger.isDebugEnabled() && opcode < Protocol.NR_OF_OPCODES) {
-                logger.debug("got request, opcode = "
-                        + Protocol.OPCODE_NAMES[opcode]);
-            }
+    private byte readOpcode(Connection connection) throws IOException {
+        byte magic = connection.in().readByte();
+
+        if (magic != Protocol.MAGIC_BYTE) {
+            throw new IOException("Invalid header byte in accepting connection");
+        }
+
+        byte opcode = connection.in().readByte();
+
+        if (logger.isDebugEnabled() && opcode >= 0
+                && opcode < Protocol.NR_OF_OPCODES) {
+            logger.debug("got request, opcode = "
+                    + Protocol.OPCODE_NAMES[opcode]);
+        }
 
+        return opcode;
+    }
+
+    private void handleRequest(Connection connection, byte opcode, long start) {
+        Pool pool = null;
+        try {
             switch (opcode) {
             case Protocol.OPCODE_JOIN:
                 pool = handleJoin(connection);
@@ -485,7 +523,80 @@ final class ServerConnectionHandler implements Runnable {
                 pool.saveStatistics();
             }
         }
-        threadEnded();
+    }
+
+    /**
+     * Handles a long-lived connection of a client. Each request on it is a
+     * frame consisting of a request id, a length, and the request exactly as
+     * it would be sent on a connection of its own. Requests are handled in
+     * order, the reply to each request is sent back as a frame with the same
+     * request id. Join requests are not allowed on a session.
+     * 
+     * At most {@link ibis.ipl.registry.central.RegistryProperties#SERVER_MAX_SESSIONS}
+     * sessions are accepted, clients that are refused send their requests on
+     * connections of their own. Sessions
+     * without requests for twice {@link Protocol#SESSION_IDLE_TIMEOUT}
+     * milliseconds are closed; clients close their sessions before that.
+     */
+    private void handleSession(Connection connection) {
+        synchronized (this) {
+            if (sessions.size() >= maxSessions) {
+                logger.debug("too many sessions, refusing session");
+                connection.closeWithError("Server: too many sessions");
+                return;
+            }
+            sessions.add(connection);
+            logger.debug("Now " + sessions.size() + " sessions");
+        }
+
+        try {
+            connection.setTimeout(2 * Protocol.SESSION_IDLE_TIMEOUT);
+            connection.sendOKReply();
+
+            while (true) {
+                int requestID = connection.in().readInt();
+                int length = connection.in().readInt();
+                if (length < 0) {
+                    throw new IOException("negative request length");
+                }
+                byte[] request = new byte[length];
+                connection.in().readFully(request);
+
+                long start = System.currentTimeMillis();
+
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                Connection frame = new Connection(new ByteArrayInputStream(
+                        request), reply);
+
+                try {
+                    byte opcode = readOpcode(frame);
+                    if (opcode == Protocol.OPCODE_JOIN
+                            || opcode == Protocol.OPCODE_SESSION) {
+                        throw new IOException("request "
+                                + Protocol.OPCODE_NAMES[opcode]
+                                + " not allowed in a session");
+                    }
+                    handleRequest(frame, opcode, start);
+                } catch (IOException e) {
+                    frame.closeWithError("Server: " + e.getMessage());
+                    logger.error("error on handling session request", e);
+                }
+
+                connection.out().writeInt(requestID);
+                connection.out().writeInt(reply.size());
+                reply.writeTo(connection.out());
+                connection.out().flush();
+            }
+        } catch (SocketTimeoutException e) {
+            logger.debug("closing idle session");
+        } catch (IOException e) {
+            logger.debug("session ended", e);
+        } finally {
+            connection.close();
+            synchronized (this) {
+                sessions.remove(connection);
+            }
+        }
     }
 
     public void end() {
@@ -494,6 +605,14 @@ final class ServerConnectionHandler implements Runnable {
         } catch (Exception e) {
             // IGNORE
         }
+
+        Connection[] sessions;
+        synchronized (this) {
+            sessions = this.sessions.toArray(new Connection[0]);
+        }
+        for (Connection session : sessions) {
+            session.close();
+        }
         if (logger.isInfoEnabled()) {
             synchronized (this) {
                 logger.info("max simultanious connections was: "
@@ -1,6 +1,7 @@
 package ibis.ipl.registry.gossip;
 
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.registry.FailureDetector;
 import ibis.util.TypedProperties;
 
 import java.io.DataInputStream;
@@ -23,6 +24,9 @@ class Member {
     
     private long lastSeen;
 
+    // signs of life of this member, created when first needed
+    private FailureDetector detector = null;
+
     // ibisses who claim this member is no more
     // cleared upon succesful contact
     private Set<UUID> witnesses;
@@ -96,6 +100,7 @@ class Member {
         
         if (other.lastSeen > lastSeen) {
             lastSeen = other.lastSeen;
+            detector().heartbeat(lastSeen);
         }
         
         for(UUID witness: other.witnesses) {
@@ -154,10 +159,36 @@ class Member {
         return left;
     }
 
+    private FailureDetector detector() {
+        if (detector == null) {
+            long interval = properties
+                    .getIntProperty(RegistryProperties.GOSSIP_INTERVAL) * 1000;
+            detector = new FailureDetector(interval, lastSeen);
+        }
+        return detector;
+    }
+
+    /**
+     * A member has timed out if it has not been seen for the peer dead
+     * timeout, and has also been silent for long compared to the earlier
+     * intervals between its signs of life.
+     */
     synchronized boolean timedout() {
         long timeout = properties.getIntProperty(RegistryProperties.PEER_DEAD_TIMEOUT) * 1000;
         
-        return System.currentTimeMillis() > (lastSeen + timeout);
+        if (System.currentTimeMillis() <= (lastSeen + timeout)) {
+            return false;
+        }
+
+        return detector().phi() >= properties
+                .getDoubleProperty(RegistryProperties.PHI_THRESHOLD);
+    }
+
+    /**
+     * Returns the current suspicion level (phi) that this member is dead.
+     */
+    synchronized double phi() {
+        return detector().phi();
     }
 
     synchronized void seen() {
@@ -167,6 +198,7 @@ class Member {
         }
 
         lastSeen = System.currentTimeMillis();
+        detector().heartbeat(lastSeen);
 
         witnesses.clear();
     }
@@ -361,6 +361,29 @@ class MemberSet extends Thread {
         return result.toArray(new Member[0]);
     }
 
+    /**
+     * Returns the highest suspicion level (phi) of any current member.
+     */
+    synchronized double getMaxPhi() {
+        double result = 0;
+        for (Member member : members.values()) {
+            if (!member.isDead() && !member.hasLeft()) {
+                result = Math.max(result, member.phi());
+            }
+        }
+        return result;
+    }
+
+    synchronized int getSuspectCount() {
+        int result = 0;
+        for (Member member : members.values()) {
+            if (member.isSuspect()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
     synchronized void printMembers() {
         System.out.println("pool at " + registry.getIbisIdentifier());
         System.out.println("dead:");
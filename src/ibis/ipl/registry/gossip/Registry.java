@@ -373,8 +373,12 @@ public class Registry extends ibis.ipl.registry.Registry implements Runnable {
     }
 
     public Map<String, String> managementProperties() {
-        // no properties (as of yet)
-        return new HashMap<String, String>();
+        Map<String, String> result = new HashMap<String, String>();
+
+        result.put("phi.max", String.format("%.2f", members.getMaxPhi()));
+        result.put("suspects", "" + members.getSuspectCount());
+
+        return result;
     }
 
     public String getManagementProperty(String key)
@@ -20,6 +20,8 @@ public class RegistryProperties {
 
     public static final String PEER_DEAD_TIMEOUT = PREFIX + "peer.dead.timeout";
 
+    public static final String PHI_THRESHOLD = PREFIX + "phi.threshold";
+
     public static final String PING_INTERVAL = PREFIX + "ping.interval";
 
     public static final String PING_COUNT = PREFIX + "ping.count";
@@ -44,6 +46,8 @@ public class RegistryProperties {
                     "Int: how many peers need to agree before a node is declared dead" },
             { PEER_DEAD_TIMEOUT, "120",
                     "Number of seconds until a peer can be declared dead" },
+            { PHI_THRESHOLD, "8",
+                    "Double: suspicion level (phi) a peer must reach, in addition to the peer dead timeout, before it can be declared dead. 0 disables this check" },
             { PING_INTERVAL, "1",
                     "How often do we try to reach a suspect member (in seconds)" },
             { PING_COUNT, "10",
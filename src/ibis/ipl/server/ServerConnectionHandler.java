@@ -8,17 +8,32 @@ import ibis.smartsockets.virtual.VirtualSocketFactory;
 import ibis.util.ThreadPool;
 
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Handles requests to the server. A single thread accepts connections, and
+ * hands them to at most {@link #MAX_THREADS} worker threads, which read and
+ * handle the requests. Accepting never waits for a worker: connections that
+ * arrive while all workers are busy are queued, and refused if the queue is
+ * full. Workers give up on clients that do not send their request within
+ * {@link #REQUEST_TIMEOUT} milliseconds.
+ */
 class ServerConnectionHandler implements Runnable {
 
     private static final int CONNECTION_BACKLOG = 50;
 
     static final int MAX_THREADS = 10;
 
+    // maximum number of accepted connections waiting for a worker
+    static final int MAX_QUEUED = 1000;
+
+    // maximum time a single read of a request may block
+    static final int REQUEST_TIMEOUT = 10000;
+
     private static final Logger logger = LoggerFactory
             .getLogger(ServerConnectionHandler.class);
 
@@ -26,44 +41,90 @@ class ServerConnectionHandler implements Runnable {
 
     private final VirtualServerSocket serverSocket;
 
+    private final LinkedList<Connection> queue = new LinkedList<Connection>();
+
     private int currentNrOfThreads = 0;
 
     private boolean ended = false;
 
+    /**
+     * Accepts connections, and queues them for the workers.
+     */
+    private final class Acceptor implements Runnable {
+        public void run() {
+            while (!hasEnded()) {
+                Connection connection;
+                try {
+                    logger.debug("accepting connection");
+                    connection = new Connection(serverSocket);
+                    logger.debug("connection accepted");
+                } catch (IOException e) {
+                    if (hasEnded()) {
+                        return;
+                    }
+                    logger.error("Accept failed, waiting a second, will retry",
+                            e);
+
+                    // wait a bit
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e1) {
+                        // IGNORE
+                    }
+                    continue;
+                }
+
+                if (!enqueue(connection)) {
+                    logger.warn("too many pending requests, refusing "
+                            + "connection");
+                    connection.closeWithError("Server: too busy");
+                    connection.close();
+                }
+            }
+        }
+    }
+
     public ServerConnectionHandler(Server server,
             VirtualSocketFactory socketFactory) throws IOException {
         this.server = server;
 
         serverSocket = socketFactory.createServerSocket(ServerConnectionProtocol.VIRTUAL_PORT,
                 CONNECTION_BACKLOG, null);
-        
-        createThread();
+
+        ThreadPool.createNew(new Acceptor(), "server connection acceptor");
     }
 
-    private synchronized void createThread() {
-        while (currentNrOfThreads >= MAX_THREADS && !ended) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
+    /**
+     * Queues a connection, and starts a worker for it if possible.
+     *
+     * @return false if the queue is full, or the handler has ended.
+     */
+    private synchronized boolean enqueue(Connection connection) {
+        if (ended || queue.size() >= MAX_QUEUED) {
+            return false;
         }
 
-        if (ended) {
-            return;
-        }
+        queue.addLast(connection);
 
-        // create new thread for next connection
-        ThreadPool.createNew(this, "server connection handler");
-        currentNrOfThreads++;
+        if (currentNrOfThreads < MAX_THREADS) {
+            ThreadPool.createNew(this, "server connection handler");
+            currentNrOfThreads++;
 
-        logger.debug("Now " + currentNrOfThreads + " connections");
+            logger.debug("Now " + currentNrOfThreads + " connection handlers");
+        }
+        return true;
     }
 
-    private synchronized void threadEnded() {
-        currentNrOfThreads--;
-
-        notifyAll();
+    /**
+     * Returns the next queued connection, or null if there is none, in which
+     * case the calling worker stops.
+     */
+    private synchronized Connection dequeue() {
+        if (queue.isEmpty() || ended) {
+            currentNrOfThreads--;
+            return null;
+        }
+        return queue.removeFirst();
     }
 
     private synchronized boolean hasEnded() {
@@ -196,35 +257,22 @@ class ServerConnectionHandler implements Runnable {
     }
 
     public void run() {
-        Connection connection = null;
-        try {
-            logger.debug("accepting connection");
-            connection = new Connection(serverSocket);
-            logger.debug("connection accepted");
-        } catch (IOException e) {
-            if (hasEnded()) {
-                threadEnded();
-                return;
-            }
-            logger.error("Accept failed, waiting a second, will retry", e);
+        while (true) {
+            Connection connection = dequeue();
 
-            // wait a bit
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e1) {
-                // IGNORE
+            if (connection == null) {
+                return;
             }
-        }
 
-        createThread();
-
-        if (connection == null) {
-            threadEnded();
-            return;
+            handle(connection);
         }
+    }
 
+    private void handle(Connection connection) {
         byte opcode = 0;
         try {
+            connection.setTimeout(REQUEST_TIMEOUT);
+
             byte magic = connection.in().readByte();
 
             if (magic != ServerConnectionProtocol.MAGIC_BYTE) {
@@ -285,20 +333,23 @@ class ServerConnectionHandler implements Runnable {
         } finally {
             connection.close();
         }
-
-        threadEnded();
     }
 
     public void end() {
+        LinkedList<Connection> pending;
         synchronized (this) {
             ended = true;
-            notifyAll();
+            pending = new LinkedList<Connection>(queue);
+            queue.clear();
         }
         try {
             serverSocket.close();
         } catch (Exception e) {
             // IGNORE
         }
+        for (Connection connection : pending) {
+            connection.close();
+        }
     }
 
 }
@@ -13,6 +13,8 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 
 import org.slf4j.Logger;
@@ -101,6 +103,27 @@ public final class Connection {
                 + " accepted");
     }
 
+    /**
+     * Connection on top of the given streams, without a socket. Used for
+     * requests that are sent as a frame on a shared connection.
+     */
+    public Connection(InputStream in, OutputStream out) {
+        socket = null;
+        counter = new CountInputStream(in);
+        this.in = new DataInputStream(counter);
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Sets the maximum time a read on this connection may block, in
+     * milliseconds. 0 means no limit.
+     */
+    public void setTimeout(int timeout) throws IOException {
+        if (socket != null) {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
     public DataOutputStream out() {
         return out;
     }
@@ -192,6 +215,10 @@ public final class Connection {
             // IGNORE
         }
 
+        if (socket == null) {
+            return;
+        }
+
         try {
             socket.close();
         } catch (IOException e) {
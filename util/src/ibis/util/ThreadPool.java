@@ -9,14 +9,82 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Threadpool which uses timeouts to determine the number of threads.
- * There is no maximum number of threads in this pool, to prevent deadlocks.
+ * By default, there is no maximum number of threads in this pool, to prevent
+ * deadlocks.
+ *
+ * When the <code>ibis.util.threadpool.max</code> property is set, work that
+ * is issued while that many threads are busy is queued until a thread becomes
+ * available. This maximum is a soft limit: to prevent deadlocks, as many
+ * callers issue work that runs for a long time, work that has been queued for
+ * longer than <code>ibis.util.threadpool.queue.timeout</code> milliseconds,
+ * or that does not fit in the queue, still gets a new thread. Such threads
+ * are counted as overflow threads, see {@link #getOverflowCount()}, and a
+ * warning is logged for each of them.
+ *
+ * Idle threads exit after <code>ibis.util.threadpool.idle.timeout</code>
+ * milliseconds, except for the last <code>ibis.util.threadpool.core</code>
+ * idle threads.
  *
  * @author Niels Drost.
  */
 public final class ThreadPool {
 
     static final Logger logger = LoggerFactory.getLogger(ThreadPool.class);
-    
+
+    final private static String PROPERTY_PREFIX = "ibis.util.threadpool.";
+
+    final private static String s_max = PROPERTY_PREFIX + "max";
+
+    final private static String s_core = PROPERTY_PREFIX + "core";
+
+    final private static String s_queue = PROPERTY_PREFIX + "queue";
+
+    final private static String s_queue_timeout = PROPERTY_PREFIX
+            + "queue.timeout";
+
+    final private static String s_idle_timeout = PROPERTY_PREFIX
+            + "idle.timeout";
+
+    final private static String[] props = { s_max, s_core, s_queue,
+            s_queue_timeout, s_idle_timeout };
+
+    final private static UtilProperties myprops = new UtilProperties(
+            System.getProperties(), PROPERTY_PREFIX, props);
+
+    /**
+     * Soft maximum number of threads, or 0 for no maximum. Queued work that
+     * times out, or does not fit in the queue, gets a thread anyway.
+     */
+    final static int MAX = myprops.getIntProperty(s_max, 0);
+
+    /** Number of idle threads that are kept, regardless of the timeout. */
+    final static int CORE = myprops.getIntProperty(s_core, 0);
+
+    /** Maximum number of queued pieces of work. */
+    final static int QUEUE_SIZE = myprops.getIntProperty(s_queue, 1000);
+
+    /** Time after which queued work gets a thread anyway. */
+    final static int QUEUE_TIMEOUT = myprops.getIntProperty(s_queue_timeout,
+            1000);
+
+    /** Time after which an idle thread exits. */
+    final static int TIMEOUT = myprops.getIntProperty(s_idle_timeout,
+            30 * 1000);
+
+    /** A piece of work waiting for a thread. */
+    private static final class Task {
+        final Runnable work;
+
+        final String name;
+
+        final long time = System.currentTimeMillis();
+
+        Task(Runnable work, String name) {
+            this.work = work;
+            this.name = name;
+        }
+    }
+
     private static final class PoolThread extends Thread {
 
         static {
@@ -26,11 +94,11 @@ public final class ThreadPool {
         private static final class ThreadPoolShutdown extends Thread {
             public void run() {
                 Logger logger = LoggerFactory.getLogger(ThreadPool.class);
-                logger.info("maximum number of simultaneous threads was: " + maxSimultaneousThreads);
+                logger.info("maximum number of simultaneous threads was: "
+                        + getMaxThreadCount() + ", overflow threads: "
+                        + getOverflowCount());
             }
         }
-        
-        private static final int TIMEOUT = 30 * 1000; //30 seconds 
 
         Runnable work = null;
 
@@ -38,23 +106,6 @@ public final class ThreadPool {
 
         boolean expired = false;
 
-        private static int nrOfThreads = 0;
-
-        private static int maxSimultaneousThreads = 0;
-        
-        private static synchronized void newThread(String name) {
-            nrOfThreads++;
-            if(nrOfThreads > maxSimultaneousThreads) {
-                maxSimultaneousThreads = nrOfThreads;
-            }
-            logger.debug("New Thread \"" + name + "\" createded, number of threads now: "  + nrOfThreads);
-        }
-
-        private static synchronized void threadGone() {
-            nrOfThreads--;
-            logger.debug("Thread removed from pool. Now " + nrOfThreads + " threads");
-        }
-
         private PoolThread() {
             //DO NOT USE
         }
@@ -62,10 +113,6 @@ public final class ThreadPool {
         PoolThread(Runnable runnable, String name) {
             this.work = runnable;
             this.name = name;
-
-             if (logger.isInfoEnabled()) {
-                 newThread(name);
-             }
         }
 
         private synchronized boolean issue(Runnable newWork, String newName) {
@@ -82,39 +129,48 @@ public final class ThreadPool {
             work = newWork;
             name = newName;
             logger.trace("issue(): reusing thread");
-            
+
             notifyAll();
             return true;
         }
 
         public void run() {
             while (true) {
-                Runnable currentWork;
-                String currentName;
+                Runnable currentWork = null;
+                String currentName = null;
 
                 synchronized (this) {
                     if (this.work == null) {
-                        waiting(this);
+                        Task task = waiting(this);
+                        if (task != null) {
+                            this.work = task.work;
+                            this.name = task.name;
+                        }
+                    }
+                    while (this.work == null) {
+                        boolean interrupted = false;
                         try {
                             wait(TIMEOUT);
                         } catch (InterruptedException e) {
-                            expired = true;
-                            if (logger.isInfoEnabled()) {
-                                threadGone();
-                            }
-                            return;
+                            interrupted = true;
+                        }
+                        if (this.work == null && leaveIdle(interrupted)) {
+                            //still no work, exit
+                            break;
                         }
                     }
                     if (this.work == null) {
-                        //still no work, exit
                         expired = true;
-                        if (logger.isInfoEnabled()) {
-                            threadGone();
-                        }
-                        return;
+                    } else {
+                        currentWork = this.work;
+                        currentName = this.name;
                     }
-                    currentWork = this.work;
-                    currentName = this.name;
+                }
+                if (currentWork == null) {
+                    // Not while holding the lock of this thread, a
+                    // createNew() may be trying to issue work to it.
+                    threadGone(this);
+                    return;
                 }
                 try {
                     setName(currentName);
@@ -141,6 +197,28 @@ public final class ThreadPool {
     private static final LinkedList<PoolThread> threadPool
             = new LinkedList<PoolThread>();
 
+    //list of work waiting for a thread, only used if MAX > 0
+    private static final LinkedList<Task> queue = new LinkedList<Task>();
+
+    /** Thread that gives queued work a thread after QUEUE_TIMEOUT. */
+    private static Thread watchdog = null;
+
+    private static volatile int nrOfThreads = 0;
+
+    // Number of threads in threadPool that did not decide to exit yet.
+    // Guarded by its own lock, as an idle thread checks it while holding its
+    // own lock, and createNew() locks the pool threads while holding the lock
+    // of this class.
+    private static int idleThreads = 0;
+
+    private static final Object idleLock = new Object();
+
+    private static int maxSimultaneousThreads = 0;
+
+    private static long created = 0;
+
+    private static long overflow = 0;
+
     /**
      * Prevent creation of a threadpool object.
      */
@@ -148,40 +226,182 @@ public final class ThreadPool {
         //DO NOT USE
     }
 
-    private static synchronized void waiting(PoolThread thread) {
+    /**
+     * Called by a thread that has no work. Returns queued work if there is
+     * any, otherwise the thread is added to the list of waiting threads.
+     */
+    private static synchronized Task waiting(PoolThread thread) {
+        if (!queue.isEmpty()) {
+            return queue.removeFirst();
+        }
         threadPool.add(thread);
+        synchronized (idleLock) {
+            idleThreads++;
+        }
+        return null;
+    }
+
+    /**
+     * Called by an idle thread that timed out. Returns true if the thread may
+     * exit, which it may if more than CORE threads are idle, or if forced.
+     */
+    private static boolean leaveIdle(boolean force) {
+        synchronized (idleLock) {
+            if (force || idleThreads > CORE) {
+                idleThreads--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static synchronized void threadGone(PoolThread thread) {
+        threadPool.remove(thread);
+        nrOfThreads--;
+        logger.debug("Thread removed from pool. Now " + nrOfThreads
+                + " threads");
+    }
+
+    private static void newThread(Runnable runnable, String name) {
+        PoolThread poolThread = new PoolThread(runnable, name);
+        poolThread.setDaemon(true);
+        nrOfThreads++;
+        created++;
+        if (nrOfThreads > maxSimultaneousThreads) {
+            maxSimultaneousThreads = nrOfThreads;
+        }
+        logger.debug("New Thread \"" + name
+                + "\" created, number of threads now: " + nrOfThreads);
+        poolThread.start();
+    }
+
+    private static void overflow(String reason) {
+        overflow++;
+        logger.warn(reason + ": exceeding the maximum of " + MAX
+                + " threads, overflow threads so far: " + overflow);
+    }
+
+    /**
+     * Starts threads for queued work that waited too long.
+     */
+    private static final class Watchdog extends Thread {
+        Watchdog() {
+            super("ThreadPool watchdog");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(QUEUE_TIMEOUT / 2 + 1);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+                synchronized (ThreadPool.class) {
+                    long limit = System.currentTimeMillis() - QUEUE_TIMEOUT;
+                    while (!queue.isEmpty()
+                            && queue.getFirst().time <= limit) {
+                        Task task = queue.removeFirst();
+                        overflow("queued work \"" + task.name
+                                + "\" waited too long");
+                        newThread(task.work, task.name);
+                    }
+                    if (queue.isEmpty()) {
+                        watchdog = null;
+                        return;
+                    }
+                }
+            }
+        }
     }
 
     /**
      * Associates a thread from the <code>ThreadPool</code> with the
      * specified {@link Runnable}. If no thread is available, a new one
-     * is created. When the {@link Runnable} is finished, the thread is
-     * added to the pool of available threads.
+     * is created, unless the maximum number of threads is reached, in which
+     * case the work is queued. When the {@link Runnable} is finished, the
+     * thread is added to the pool of available threads.
      *
      * @param runnable the <code>Runnable</code> to be executed.
      * @param name set the thread name for the duration of this run
      */
     public static synchronized void createNew(Runnable runnable, String name) {
-        PoolThread poolThread;
-
-        if (!threadPool.isEmpty()) {
-            poolThread = threadPool.removeLast();
+        while (!threadPool.isEmpty()) {
+            PoolThread poolThread = threadPool.removeLast();
             if (poolThread.issue(runnable, name)) {
                 //issue of work succeeded, return
+                synchronized (idleLock) {
+                    idleThreads--;
+                }
                 return;
             }
-            //shortest waiting poolThread in list timed out, 
-            //assume all threads timed out
-            if (logger.isDebugEnabled()) {
-                logger.debug("clearing thread pool of size "
-                        + threadPool.size());
+            //this poolThread timed out and is about to leave, try the next
+        }
+
+        if (MAX > 0 && nrOfThreads >= MAX) {
+            if (queue.size() < QUEUE_SIZE) {
+                queue.addLast(new Task(runnable, name));
+                if (watchdog == null) {
+                    watchdog = new Watchdog();
+                    watchdog.start();
+                }
+                return;
             }
-            threadPool.clear();
+            // Queue full. Never block the caller, it may be the thread
+            // that the queued work is waiting for.
+            overflow("queue full, work \"" + name + "\"");
         }
 
         //no usable thread found, create a new thread
-        poolThread = new PoolThread(runnable, name);
-        poolThread.setDaemon(true);
-        poolThread.start();
+        newThread(runnable, name);
+    }
+
+    /**
+     * Returns the current number of threads in the pool.
+     * @return the number of threads.
+     */
+    public static synchronized int getThreadCount() {
+        return nrOfThreads;
+    }
+
+    /**
+     * Returns the number of threads that are currently running work.
+     * @return the number of active threads.
+     */
+    public static synchronized int getActiveCount() {
+        return nrOfThreads - threadPool.size();
+    }
+
+    /**
+     * Returns the number of pieces of work waiting for a thread.
+     * @return the queue length.
+     */
+    public static synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the total number of threads created by the pool.
+     * @return the number of created threads.
+     */
+    public static synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * Returns the maximum number of simultaneous threads so far.
+     * @return the maximum number of threads.
+     */
+    public static synchronized int getMaxThreadCount() {
+        return maxSimultaneousThreads;
+    }
+
+    /**
+     * Returns the number of threads that were created beyond the maximum,
+     * to prevent deadlock.
+     * @return the number of overflow threads.
+     */
+    public static synchronized long getOverflowCount() {
+        return overflow;
     }
 }
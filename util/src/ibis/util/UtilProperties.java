@@ -9,7 +9,8 @@ class UtilProperties extends TypedProperties {
 
     private static final long serialVersionUID = 1L;
 
-    private static String[] prefs = { "ibis.util.ip.", "ibis.util.monitor." };
+    // Sub-prefixes, relative to "ibis.util.".
+    private static String[] prefs = { "ip.", "monitor.", "threadpool." };
  
     /** Constructs an empty typed properties object. */
     public UtilProperties() {